@@ -0,0 +1,181 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import java.util.Random;
+
+/**
+ * Generates synthetic records for the stage benchmarks. Records are deterministic for a seed, so results
+ * are comparable between runs.
+ *
+ * Every JSON / XML record has a title, a few scalar members, a body padded to about payloadChars, a 'meta'
+ * object nested depth levels deep and an 'items' array of fanout objects (each with its own nested 'detail'
+ * of depth levels) - the array that the benchmarks map as linked or nested objects.
+ */
+final class BenchCorpus {
+
+  private static final String[] WORDS = { "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing",
+                                          "elit", "sed", "do", "eiusmod", "tempor", "incididunt", "ut", "labore",
+                                          "et", "dolore", "magna", "aliqua" };
+
+  private static final String[] CATEGORIES = { "Person", "Organization", "Location", "Product", "Event" };
+
+  private BenchCorpus( ) { }
+
+  static String[] jsonRecords( int count, int payloadChars, int depth, int fanout, long seed ) {
+    Random random = new Random( seed );
+    String[] records = new String[ count ];
+    for (int n = 0; n < count; n++) {
+      StringBuilder sb = new StringBuilder( payloadChars + 256 );
+      sb.append( "{\"id\":\"rec-" ).append( n ).append( "\"" );
+      sb.append( ",\"title\":\"" ).append( words( random, 6 ) ).append( "\"" );
+      sb.append( ",\"score\":\"" ).append( random.nextInt( 1000 ) ).append( "\"" );
+      sb.append( ",\"active\":" ).append( random.nextBoolean( ) );
+      sb.append( ",\"tags\":[\"" ).append( word( random ) ).append( "\",\"" ).append( word( random ) ).append( "\"]" );
+      sb.append( ",\"meta\":" );
+      jsonNested( sb, random, depth );
+      sb.append( ",\"items\":[" );
+      for (int i = 0; i < fanout; i++) {
+        if (i > 0) sb.append( ',' );
+        sb.append( "{\"k\":\"" ).append( i ).append( "\",\"name\":\"" ).append( words( random, 3 ) ).append( "\",\"detail\":" );
+        jsonNested( sb, random, depth );
+        sb.append( '}' );
+      }
+      sb.append( "],\"body\":\"" );
+      pad( sb, random, payloadChars );
+      sb.append( "\"}" );
+      records[n] = sb.toString( );
+    }
+    return records;
+  }
+
+  static String[] xmlRecords( int count, int payloadChars, int depth, int fanout, long seed ) {
+    Random random = new Random( seed );
+    String[] records = new String[ count ];
+    for (int n = 0; n < count; n++) {
+      StringBuilder sb = new StringBuilder( payloadChars + 256 );
+      xmlRecord( sb, random, n, payloadChars, depth, fanout );
+      records[n] = sb.toString( );
+    }
+    return records;
+  }
+
+  /**
+   * XML documents that hold recordsPerDoc records each - the input of XMLTransformStage.
+   */
+  static String[] xmlDocuments( int count, int recordsPerDoc, int fieldsPerRecord, long seed ) {
+    Random random = new Random( seed );
+    String[] docs = new String[ count ];
+    for (int n = 0; n < count; n++) {
+      StringBuilder sb = new StringBuilder( );
+      sb.append( "<?xml version=\"1.0\" encoding=\"UTF-8\"?><records>" );
+      for (int r = 0; r < recordsPerDoc; r++) {
+        sb.append( "<record id=\"" ).append( n ).append( '-' ).append( r ).append( "\">" );
+        sb.append( "<title>" ).append( words( random, 6 ) ).append( "</title>" );
+        for (int f = 0; f < fieldsPerRecord; f++) {
+          sb.append( "<field name=\"f" ).append( f ).append( "\">" ).append( words( random, 4 ) ).append( "</field>" );
+        }
+        sb.append( "<body><p>" ).append( words( random, 40 ) ).append( "</p><p>" ).append( words( random, 40 ) ).append( "</p></body>" );
+        sb.append( "</record>" );
+      }
+      sb.append( "</records>" );
+      docs[n] = sb.toString( );
+    }
+    return docs;
+  }
+
+  /**
+   * JSON records with the members that the DataTransforms in ROPTransforms.xml work on: NE (named entities),
+   * DateTime, SearchContent0, SearchContent1 and Content.
+   */
+  static String[] ropRecords( int count, int entities, int paragraphs, long seed ) {
+    Random random = new Random( seed );
+    String[] records = new String[ count ];
+    for (int n = 0; n < count; n++) {
+      StringBuilder sb = new StringBuilder( );
+      sb.append( "{\"id\":\"rop-" ).append( n ).append( "\"" );
+      sb.append( ",\"DateTime\":\"20" ).append( 10 + random.nextInt( 10 ) ).append( '/' ).append( two( 1 + random.nextInt( 12 ) ) )
+        .append( '/' ).append( two( 1 + random.nextInt( 28 ) ) ).append( ' ' ).append( two( random.nextInt( 24 ) ) )
+        .append( ':' ).append( two( random.nextInt( 60 ) ) ).append( ':' ).append( two( random.nextInt( 60 ) ) ).append( "\"" );
+      sb.append( ",\"NE\":[" );
+      for (int e = 0; e < entities; e++) {
+        if (e > 0) sb.append( ',' );
+        sb.append( "{\"Category\":\"" ).append( CATEGORIES[ random.nextInt( CATEGORIES.length ) ] )
+          .append( "\",\"Name\":\"" ).append( words( random, 2 ) ).append( "\"}" );
+      }
+      sb.append( ']' );
+      for (String member : new String[] { "SearchContent0", "SearchContent1" } ) {
+        sb.append( ",\"" ).append( member ).append( "\":[{\"Type\":\"Subject\",\"Content\":\"" ).append( words( random, 8 ) )
+          .append( "\"},{\"Type\":\"Body\",\"Content\":\"" ).append( words( random, 20 * paragraphs ) ).append( "\"}]" );
+      }
+      sb.append( ",\"Content\":[{\"Type\":\"Subject\",\"Paragraphs\":\"" ).append( words( random, 8 ) ).append( "\"}" );
+      sb.append( ",{\"Type\":\"Body\",\"Paragraphs\":[" );
+      for (int p = 0; p < paragraphs; p++) {
+        if (p > 0) sb.append( ',' );
+        sb.append( '"' ).append( words( random, 40 ) ).append( '"' );
+      }
+      sb.append( "]}]}" );
+      records[n] = sb.toString( );
+    }
+    return records;
+  }
+
+  private static void jsonNested( StringBuilder sb, Random random, int depth ) {
+    for (int d = 0; d < depth; d++) {
+      sb.append( "{\"level\":\"" ).append( d ).append( "\",\"label\":\"" ).append( word( random ) ).append( "\",\"next\":" );
+    }
+    sb.append( "{\"value\":\"" ).append( word( random ) ).append( "\"}" );
+    for (int d = 0; d < depth; d++) {
+      sb.append( '}' );
+    }
+  }
+
+  private static void xmlRecord( StringBuilder sb, Random random, int n, int payloadChars, int depth, int fanout ) {
+    sb.append( "<record id=\"rec-" ).append( n ).append( "\">" );
+    sb.append( "<title>" ).append( words( random, 6 ) ).append( "</title>" );
+    sb.append( "<score>" ).append( random.nextInt( 1000 ) ).append( "</score>" );
+    sb.append( "<meta>" );
+    xmlNested( sb, random, depth );
+    sb.append( "</meta><items>" );
+    for (int i = 0; i < fanout; i++) {
+      sb.append( "<item k=\"" ).append( i ).append( "\"><name>" ).append( words( random, 3 ) ).append( "</name><detail>" );
+      xmlNested( sb, random, depth );
+      sb.append( "</detail></item>" );
+    }
+    sb.append( "</items><body>" );
+    pad( sb, random, payloadChars );
+    sb.append( "</body></record>" );
+  }
+
+  private static void xmlNested( StringBuilder sb, Random random, int depth ) {
+    for (int d = 0; d < depth; d++) {
+      sb.append( "<next level=\"" ).append( d ).append( "\"><label>" ).append( word( random ) ).append( "</label>" );
+    }
+    sb.append( "<value>" ).append( word( random ) ).append( "</value>" );
+    for (int d = 0; d < depth; d++) {
+      sb.append( "</next>" );
+    }
+  }
+
+  private static void pad( StringBuilder sb, Random random, int payloadChars ) {
+    int target = sb.length( ) + payloadChars;
+    while (sb.length( ) < target) {
+      sb.append( word( random ) ).append( ' ' );
+    }
+  }
+
+  private static String words( Random random, int n ) {
+    StringBuilder sb = new StringBuilder( );
+    for (int i = 0; i < n; i++) {
+      if (i > 0) sb.append( ' ' );
+      sb.append( word( random ) );
+    }
+    return sb.toString( );
+  }
+
+  private static String word( Random random ) {
+    return WORDS[ random.nextInt( WORDS.length ) ];
+  }
+
+  private static String two( int value ) {
+    return (value < 10) ? "0" + value : Integer.toString( value );
+  }
+}
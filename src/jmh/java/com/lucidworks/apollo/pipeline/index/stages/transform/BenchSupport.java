@@ -0,0 +1,113 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import com.lucidworks.apollo.common.pipeline.PipelineDocument;
+import com.lucidworks.apollo.component.ResourceLoader;
+import com.lucidworks.apollo.pipeline.PipelineCollector;
+import com.lucidworks.apollo.pipeline.index.config.transform.XMLTransformConfig;
+import com.lucidworks.apollo.pipeline.index.config.transform.XMLTransformConfig.XPathMappingRule;
+import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig;
+import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig.FieldMapping;
+import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig.Format;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.file.Files;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory collector, resource loader and config factories for the stage benchmarks.
+ */
+final class BenchSupport {
+
+  static final String INPUT_FIELD = "body";
+
+  private BenchSupport( ) { }
+
+  /**
+   * Counts written documents and keeps the last one, so that the work of building it cannot be eliminated.
+   */
+  static final class CountingCollector implements PipelineCollector<PipelineDocument> {
+    private long written;
+    private PipelineDocument last;
+
+    @Override
+    public void write( PipelineDocument doc ) {
+      ++written;
+      last = doc;
+    }
+
+    long getWritten( ) {
+      return written;
+    }
+
+    PipelineDocument getLast( ) {
+      return last;
+    }
+  }
+
+  /**
+   * ResourceLoader over a map of resource names to bytes - stands in for the blob store.
+   */
+  static final class InMemoryResourceLoader implements ResourceLoader {
+    private final Map<String, byte[]> resources = new HashMap<String, byte[]>( );
+
+    void put( String name, byte[] data ) {
+      resources.put( name, data );
+    }
+
+    @Override
+    public InputStream get( String name ) throws IOException {
+      byte[] data = resources.get( name );
+      return (data != null) ? new ByteArrayInputStream( data ) : null;
+    }
+  }
+
+  /**
+   * Reads ROPTransforms.xml - from the rop.transforms system property or the working directory.
+   */
+  static byte[] readROPTransforms( ) throws IOException {
+    return Files.readAllBytes( new File( System.getProperty( "rop.transforms", "ROPTransforms.xml" ) ).toPath( ) );
+  }
+
+  static PipelineDocument newDocument( String id, String data ) {
+    PipelineDocument doc = new PipelineDocument( id );
+    doc.addField( "id", id );
+    doc.addField( INPUT_FIELD, data );
+    return doc;
+  }
+
+  static RichObjectParserConfig richObjectParserConfig( String id, Format format, String dataObjectTransform,
+                                                        List<FieldMapping> fieldMappings, boolean streamingParser ) {
+    return richObjectParserConfig( id, format, dataObjectTransform, fieldMappings, streamingParser, 0 );
+  }
+
+  static RichObjectParserConfig richObjectParserConfig( String id, Format format, String dataObjectTransform,
+                                                        List<FieldMapping> fieldMappings, boolean streamingParser,
+                                                        int parallelChildThreshold ) {
+    return new BenchRichObjectParserConfig( id, format, dataObjectTransform, fieldMappings, streamingParser,
+                                            parallelChildThreshold );
+  }
+
+  static XMLTransformConfig xmlTransformConfig( String id, String rootXPath, List<XPathMappingRule> mappings,
+                                                boolean keepParent, String subDocField, boolean streamRecords,
+                                                int parallelRecordThreshold ) {
+    return new XMLTransformConfig( id, rootXPath, "parent_id_s", INPUT_FIELD, mappings, null, keepParent, subDocField, false,
+                                   streamRecords, parallelRecordThreshold, false, false );
+  }
+
+  // the config's @JsonCreator constructor is protected
+  private static final class BenchRichObjectParserConfig extends RichObjectParserConfig {
+    BenchRichObjectParserConfig( String id, Format format, String dataObjectTransform, List<FieldMapping> fieldMappings,
+                                 boolean streamingParser, int parallelChildThreshold ) {
+      super( id, format, INPUT_FIELD, null, null, "parent_id_s", dataObjectTransform, 0, null, null, null, fieldMappings,
+             parallelChildThreshold, null, null, null, null, null, null,
+             streamingParser );
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import com.lucidworks.apollo.common.pipeline.PipelineDocument;
+import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig;
+import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig.FieldMapping;
+import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig.Format;
+import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig.Mode;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * RichObjectParserStage.process with the DataTransforms of ROPTransforms.xml (loaded through the blob store
+ * ResourceLoader) over records shaped like the ones they were written for.
+ *
+ * Needs ROPTransforms.xml in the working directory or -Drop.transforms=path. Run with -prof gc.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( org.openjdk.jmh.annotations.Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class ROPTransformsBenchmark {
+
+  private static final int RECORDS = 64;
+  private static final String TRANSFORMS = "ROPTransforms.xml";
+
+  @Param( { "4", "64" } )
+  public int entities;
+
+  @Param( { "2", "32" } )
+  public int paragraphs;
+
+  private RichObjectParserStage stage;
+  private RichObjectParserConfig config;
+  private String[] records;
+  private String[] ids;
+
+  @State( Scope.Thread )
+  public static class Cursor {
+    int next;
+    final BenchSupport.CountingCollector collector = new BenchSupport.CountingCollector( );
+  }
+
+  @Setup
+  public void setup( ) throws Exception {
+    records = BenchCorpus.ropRecords( RECORDS, entities, paragraphs, 42L );
+    ids = new String[ RECORDS ];
+    for (int i = 0; i < RECORDS; i++) {
+      ids[i] = "rop-" + i;
+    }
+
+    BenchSupport.InMemoryResourceLoader resourceLoader = new BenchSupport.InMemoryResourceLoader( );
+    resourceLoader.put( TRANSFORMS, BenchSupport.readROPTransforms( ) );
+
+    ArrayList<FieldMapping> mappings = new ArrayList<FieldMapping>( );
+    mappings.add( new FieldMapping( "/DateTime", "date_dt", Mode.field, null, null, null ) );
+    mappings.add( new FieldMapping( "/NE/Person", "person_ss", Mode.field, null, null, null ) );
+    mappings.add( new FieldMapping( "/NE/Organization", "organization_ss", Mode.field, null, null, null ) );
+    mappings.add( new FieldMapping( "/SearchContent0/Subject", "subject_t", Mode.field, null, null, null ) );
+    mappings.add( new FieldMapping( "/SearchContent0/Body", "body_t", Mode.field, null, null, null ) );
+    mappings.add( new FieldMapping( "/Content", "content_json", Mode.json_string, null, null, null ) );
+
+    stage = new RichObjectParserStage( resourceLoader );
+    config = BenchSupport.richObjectParserConfig( "bench-rop", Format.json, TRANSFORMS, mappings, true );
+  }
+
+  @Benchmark
+  public void process( Cursor cursor, Blackhole bh ) throws Exception {
+    int n = cursor.next++ % RECORDS;
+    PipelineDocument doc = BenchSupport.newDocument( ids[n], records[n] );
+    stage.process( doc, null, config, cursor.collector, null );
+    bh.consume( cursor.collector.getLast( ) );
+  }
+}
@@ -0,0 +1,124 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import com.lucidworks.apollo.common.pipeline.PipelineDocument;
+import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig;
+import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig.FieldMapping;
+import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig.Format;
+import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig.InnerMapping;
+import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig.Mode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * RichObjectParserStage.process over generated JSON and XML records of varying payload size, nesting depth and
+ * 'items' fan-out, with the items mapped as linked or nested objects. The streaming parameter only applies to JSON.
+ * processBatch runs all RECORDS records as one batch.
+ *
+ * Run with -prof gc to get the allocation rate next to ops/s.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( org.openjdk.jmh.annotations.Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class RichObjectParserBenchmark {
+
+  private static final int RECORDS = 64;
+
+  @Param( { "json", "xml" } )
+  public String format;
+
+  @Param( { "1024", "16384", "262144" } )
+  public int payloadChars;
+
+  @Param( { "1", "4" } )
+  public int depth;
+
+  @Param( { "0", "8", "64" } )
+  public int fanout;
+
+  @Param( { "linked_object", "nested_object" } )
+  public String childMode;
+
+  @Param( { "true", "false" } )
+  public boolean streaming;
+
+  // 0 = build child documents serially
+  @Param( { "0" } )
+  public int parallelChildThreshold;
+
+  private RichObjectParserStage stage;
+  private RichObjectParserConfig config;
+  private String[] records;
+  private String[] ids;
+
+  /**
+   * Per thread position in the corpus and collector.
+   */
+  @State( Scope.Thread )
+  public static class Cursor {
+    int next;
+    final BenchSupport.CountingCollector collector = new BenchSupport.CountingCollector( );
+  }
+
+  @Setup
+  public void setup( ) {
+    Format recordFormat = Format.valueOf( format );
+    records = (recordFormat == Format.json)
+            ? BenchCorpus.jsonRecords( RECORDS, payloadChars, depth, fanout, 42L )
+            : BenchCorpus.xmlRecords( RECORDS, payloadChars, depth, fanout, 42L );
+    ids = new String[ RECORDS ];
+    for (int i = 0; i < RECORDS; i++) {
+      ids[i] = "doc-" + i;
+    }
+
+    // JSON records are objects with the record's members, XML records are the <record> element
+    String items = (recordFormat == Format.json) ? "/items" : "/items/item";
+    ArrayList<FieldMapping> mappings = new ArrayList<FieldMapping>( );
+    mappings.add( new FieldMapping( "/title", "title_t", Mode.field, null, null, null ) );
+    mappings.add( new FieldMapping( "/meta", "meta_json", Mode.json_string, null, null, null ) );
+    mappings.add( new FieldMapping( items, "items", Mode.valueOf( childMode ), "parent_id_s", Arrays.asList( "title_t" ),
+                                    Arrays.asList( new InnerMapping( "/name", "name_s" ), new InnerMapping( "/detail", "detail_json" ) ) ) );
+
+    stage = new RichObjectParserStage( new BenchSupport.InMemoryResourceLoader( ) );
+    config = BenchSupport.richObjectParserConfig( "bench-" + format, recordFormat, null, mappings, streaming,
+                                                  parallelChildThreshold );
+  }
+
+  @Benchmark
+  public void process( Cursor cursor, Blackhole bh ) throws Exception {
+    int n = cursor.next++ % RECORDS;
+    PipelineDocument doc = BenchSupport.newDocument( ids[n], records[n] );
+    stage.process( doc, null, config, cursor.collector, null );
+    bh.consume( cursor.collector.getLast( ) );
+  }
+
+  /**
+   * The whole corpus through processBatch - compare with RECORDS * process ops.
+   */
+  @Benchmark
+  public int processBatch( Cursor cursor, Blackhole bh ) throws Exception {
+    ArrayList<PipelineDocument> docs = new ArrayList<PipelineDocument>( RECORDS );
+    for (int n = 0; n < RECORDS; n++) {
+      docs.add( BenchSupport.newDocument( ids[n], records[n] ) );
+    }
+    int nFailed = stage.processBatch( docs, null, config, cursor.collector );
+    bh.consume( cursor.collector.getLast( ) );
+    return nFailed;
+  }
+}
@@ -0,0 +1,94 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import com.lucidworks.apollo.common.pipeline.PipelineDocument;
+import com.lucidworks.apollo.pipeline.index.config.transform.XMLTransformConfig;
+import com.lucidworks.apollo.pipeline.index.config.transform.XMLTransformConfig.XPathMappingRule;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * XMLTransformStage.process over generated XML documents with recordsPerDoc records of fieldsPerRecord fields each.
+ * Records are emitted as separate documents or nested in the parent (keepParent), split from a DOM of the document
+ * or while streaming (streamRecords), and mapped on the calling thread or on the worker pool (parallelRecordThreshold).
+ * Run with -prof gc.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class XMLTransformBenchmark {
+
+  private static final int DOCUMENTS = 32;
+
+  @Param( { "1", "16", "256" } )
+  public int recordsPerDoc;
+
+  @Param( { "4", "32" } )
+  public int fieldsPerRecord;
+
+  @Param( { "false", "true" } )
+  public boolean saveAsXML;
+
+  @Param( { "false", "true" } )
+  public boolean keepParent;
+
+  @Param( { "false", "true" } )
+  public boolean streamRecords;
+
+  @Param( { "0", "64" } )
+  public int parallelRecordThreshold;
+
+  private XMLTransformStage stage;
+  private XMLTransformConfig config;
+  private String[] documents;
+  private String[] ids;
+
+  @State( Scope.Thread )
+  public static class Cursor {
+    int next;
+    final BenchSupport.CountingCollector collector = new BenchSupport.CountingCollector( );
+  }
+
+  @Setup
+  public void setup( ) {
+    documents = BenchCorpus.xmlDocuments( DOCUMENTS, recordsPerDoc, fieldsPerRecord, 42L );
+    ids = new String[ DOCUMENTS ];
+    for (int i = 0; i < DOCUMENTS; i++) {
+      ids[i] = "xml-" + i;
+    }
+
+    ArrayList<XPathMappingRule> mappings = new ArrayList<XPathMappingRule>( );
+    mappings.add( new XPathMappingRule( "/record/title", "title_t", null, false, false ) );
+    mappings.add( new XPathMappingRule( "/record/field", "/record/field/@name", "_s", true, false ) );
+    mappings.add( new XPathMappingRule( "/record/body", "body_xml", null, false, saveAsXML ) );
+
+    stage = new XMLTransformStage( );
+    config = BenchSupport.xmlTransformConfig( "bench-xml", "/records/record", mappings, keepParent,
+                                              (keepParent) ? "records" : null, streamRecords,
+                                              parallelRecordThreshold );
+  }
+
+  @Benchmark
+  public void process( Cursor cursor, Blackhole bh ) throws Exception {
+    int n = cursor.next++ % DOCUMENTS;
+    PipelineDocument doc = BenchSupport.newDocument( ids[n], documents[n] );
+    stage.process( doc, null, config, cursor.collector, null );
+    bh.consume( cursor.collector.getLast( ) );
+  }
+}
@@ -10,7 +10,9 @@ import org.codehaus.jackson.annotate.JsonProperty;
 import org.codehaus.jackson.annotate.JsonTypeName;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 @JsonTypeName("rich-object-parser")
 @Schema(
@@ -27,39 +29,121 @@ public class RichObjectParserConfig extends StageConfig {
   @SchemaProperty( title="input field" )
   private final String inputField;
     
+  // field: the input field holds the record, file: it holds the path of a local file of records
+  @SchemaProperty( title="Input Mode", defaultValue="field" )
+  private final InputMode inputMode;
+    
+  // file mode, XML: the elements that are records, default = the children of the document element - a matching
+  // element inside of a record is part of that record, not a record of its own (unlike XMLTransformStage records)
+  @SchemaProperty( title="Record XPath" )
+  private final String rootXPath;
+    
   @SchemaProperty( title="Parent ID Field Name" )
   private final String parentIDFieldName;
     
   @SchemaProperty(title="Data Object Transform Config")
   private final String dataObjectTransform;
     
+  // how often the Data Object Transform Config is checked for changes, 0 = never
+  @SchemaProperty( title="Transform Refresh Interval (seconds)", defaultValue="60" )
+  private final int transformRefreshSeconds;
+    
   @SchemaProperty( title="Failed Records Path")
   private final String failedRecordsPath;
     
+  // gzip the dead letter segment files in failedRecordsPath
+  @SchemaProperty( title="Compress Failed Records", defaultValue="false" )
+  private final boolean compressFailedRecords;
+    
+  // dead letter segment files are rolled over when they reach this size
+  @SchemaProperty( title="Failed Records Segment Size (MB)", defaultValue="64" )
+  private final int failedRecordsSegmentMB;
+    
   @SchemaProperty(title="Field Mappings" )
   private final List<FieldMapping> fieldMappings;
     
+  // linked / nested object lists with at least this many entries are built in parallel, 0 = never - lists of
+  // jsonl records processed in parallel chunks are always built sequentially
+  @SchemaProperty( title="Parallel Child Threshold", defaultValue="0" )
+  private final int parallelChildThreshold;
+    
+  // only parse the record members that field mappings reference or dynamic fields are added for
+  @SchemaProperty( title="Projection", defaultValue="false" )
+  private final boolean projection;
+    
+  // record members that dynamic fields are added for ('*' and '?' wildcards), default = all
+  @SchemaProperty( title="Dynamic Field Includes" )
+  private final List<String> dynamicFieldIncludes;
+    
+  // record members that no dynamic fields are added for, even if included
+  @SchemaProperty( title="Dynamic Field Excludes" )
+  private final List<String> dynamicFieldExcludes;
+    
+  // dynamic field suffixes by member path (e.g. price: _f, items/tags: _ss) - no type inspection for these
+  @SchemaProperty( title="Dynamic Field Suffixes" )
+  private final Map<String, String> dynamicFieldSuffixes;
+    
+  // reuse the suffix picked for the first value of a member path instead of inspecting every value (not strings)
+  @SchemaProperty( title="Learn Dynamic Field Suffixes", defaultValue="false" )
+  private final boolean learnDynamicFieldSuffixes;
+    
+  // add Integer, Double, Boolean and Date values for typed properties instead of their String values
+  @SchemaProperty( title="Native Field Values", defaultValue="false" )
+  private final boolean nativeFieldValues;
+    
+  // map JSON members directly to document fields without building a DataObject for the whole record - opt in:
+  // empty strings are added as empty fields and dynamic fields follow the order of the record's members
+  @SchemaProperty( title="Streaming Parser", defaultValue="false" )
+  private final boolean streamingParser;
+    
   @JsonCreator
   protected RichObjectParserConfig( @JsonProperty("id") String id,
                                     @JsonProperty("format") Format format,
                                     @JsonProperty("inputField") String inputField,
+                                    @JsonProperty("inputMode") InputMode inputMode,
+                                    @JsonProperty("rootXPath") String rootXPath,
                                     @JsonProperty("parentIDFieldName") String parentIDFieldName,
                                     @JsonProperty("dataObjectTransform") String dataObjectTransform,
+                                    @JsonProperty("transformRefreshSeconds") Integer transformRefreshSeconds,
                                     @JsonProperty("failedRecordsPath") String failedRecordsPath,
-                                    @JsonProperty("fieldMappings") List<FieldMapping> fieldMappings ) {
+                                    @JsonProperty("compressFailedRecords") Boolean compressFailedRecords,
+                                    @JsonProperty("failedRecordsSegmentMB") Integer failedRecordsSegmentMB,
+                                    @JsonProperty("fieldMappings") List<FieldMapping> fieldMappings,
+                                    @JsonProperty("parallelChildThreshold") Integer parallelChildThreshold,
+                                    @JsonProperty("projection") Boolean projection,
+                                    @JsonProperty("dynamicFieldIncludes") List<String> dynamicFieldIncludes,
+                                    @JsonProperty("dynamicFieldExcludes") List<String> dynamicFieldExcludes,
+                                    @JsonProperty("dynamicFieldSuffixes") Map<String, String> dynamicFieldSuffixes,
+                                    @JsonProperty("learnDynamicFieldSuffixes") Boolean learnDynamicFieldSuffixes,
+                                    @JsonProperty("nativeFieldValues") Boolean nativeFieldValues,
+                                    @JsonProperty("streamingParser") Boolean streamingParser ) {
     super(id);
     this.format = format;
     this.inputField = inputField;
+    this.inputMode = inputMode == null ? InputMode.field : inputMode;
+    this.rootXPath = rootXPath;
     this.fieldMappings = new ArrayList<FieldMapping>( );
     for (FieldMapping fieldMapping : fieldMappings)
     {
      this.fieldMappings.add( fieldMapping );
     }
       
+    this.parallelChildThreshold = parallelChildThreshold == null ? 0 : parallelChildThreshold;
+    this.projection = projection == null ? false : projection;
+    this.dynamicFieldIncludes = (dynamicFieldIncludes != null) ? new ArrayList<String>( dynamicFieldIncludes ) : null;
+    this.dynamicFieldExcludes = (dynamicFieldExcludes != null) ? new ArrayList<String>( dynamicFieldExcludes ) : null;
+    this.dynamicFieldSuffixes = (dynamicFieldSuffixes != null) ? new LinkedHashMap<String, String>( dynamicFieldSuffixes ) : null;
+    this.learnDynamicFieldSuffixes = learnDynamicFieldSuffixes == null ? false : learnDynamicFieldSuffixes;
+    this.nativeFieldValues = nativeFieldValues == null ? false : nativeFieldValues;
+      
     this.parentIDFieldName = parentIDFieldName;
     this.dataObjectTransform = dataObjectTransform;
+    this.transformRefreshSeconds = transformRefreshSeconds == null ? 60 : transformRefreshSeconds;
       
     this.failedRecordsPath = failedRecordsPath;
+    this.compressFailedRecords = compressFailedRecords == null ? false : compressFailedRecords;
+    this.failedRecordsSegmentMB = failedRecordsSegmentMB == null ? 64 : failedRecordsSegmentMB;
+    this.streamingParser = streamingParser == null ? false : streamingParser;
   }
 
   @JsonProperty( "format" )
@@ -72,11 +156,56 @@ public class RichObjectParserConfig extends StageConfig {
     return this.inputField;
   }
     
+  @JsonProperty( "inputMode" )
+  public InputMode getInputMode( ) {
+    return this.inputMode;
+  }
+    
+  @JsonProperty( "rootXPath" )
+  public String getRootXPath( ) {
+    return this.rootXPath;
+  }
+    
   @JsonProperty( "fieldMappings" )
   public List<FieldMapping> getFieldMappings(  ) {
     return this.fieldMappings;
   }
     
+  @JsonProperty( "parallelChildThreshold" )
+  public int getParallelChildThreshold( ) {
+    return this.parallelChildThreshold;
+  }
+    
+  @JsonProperty( "projection" )
+  public boolean useProjection( ) {
+    return this.projection;
+  }
+    
+  @JsonProperty( "dynamicFieldIncludes" )
+  public List<String> getDynamicFieldIncludes( ) {
+    return this.dynamicFieldIncludes;
+  }
+    
+  @JsonProperty( "dynamicFieldExcludes" )
+  public List<String> getDynamicFieldExcludes( ) {
+    return this.dynamicFieldExcludes;
+  }
+    
+  @JsonProperty( "dynamicFieldSuffixes" )
+  public Map<String, String> getDynamicFieldSuffixes( ) {
+    return this.dynamicFieldSuffixes;
+  }
+    
+  @JsonProperty( "learnDynamicFieldSuffixes" )
+  public boolean learnDynamicFieldSuffixes( ) {
+    return this.learnDynamicFieldSuffixes;
+  }
+    
+  @JsonProperty( "nativeFieldValues" )
+  public boolean useNativeFieldValues( ) {
+    return this.nativeFieldValues;
+  }
+    
   @JsonProperty( "parentIDFieldName" )
   public String getParentIDFieldName( ) {
     return this.parentIDFieldName;
@@ -87,10 +216,30 @@ public class RichObjectParserConfig extends StageConfig {
     return this.dataObjectTransform;
   }
     
+  @JsonProperty( "transformRefreshSeconds" )
+  public int getTransformRefreshSeconds( ) {
+    return this.transformRefreshSeconds;
+  }
+    
   @JsonProperty( "failedRecordsPath" )
   public String getFailedRecordsPath( ) {
     return this.failedRecordsPath;
   }
+    
+  @JsonProperty( "compressFailedRecords" )
+  public boolean compressFailedRecords( ) {
+    return this.compressFailedRecords;
+  }
+    
+  @JsonProperty( "failedRecordsSegmentMB" )
+  public int getFailedRecordsSegmentMB( ) {
+    return this.failedRecordsSegmentMB;
+  }
+    
+  @JsonProperty( "streamingParser" )
+  public boolean useStreamingParser( ) {
+    return this.streamingParser;
+  }
 
   public static class FieldMapping {
     @SchemaProperty(title = "Input Path", required = true)
@@ -146,8 +295,13 @@ public class RichObjectParserConfig extends StageConfig {
     }
   }
     
+  // jsonl: JSON Lines or concatenated JSON values, one record per value
   public static enum Format {
-      json, xml
+      json, xml, jsonl
+  }
+    
+  public static enum InputMode {
+      field, file
   }
     
   public static enum Mode {
@@ -31,6 +31,10 @@ public class XMLTransformConfig extends StageConfig {
   public static final String ROOT_XPATH = "rootXPath";
   public static final String SUB_DOCUMENT_FIELD = "subDocField";
   public static final String CLEANUP_XML = "cleanUpXML";
+  public static final String STREAM_RECORDS = "streamRecords";
+  public static final String PARALLEL_RECORD_THRESHOLD = "parallelRecordThreshold";
+  public static final String NAMESPACE_AWARE = "namespaceAware";
+  public static final String IGNORE_WHITESPACE = "ignoreWhitespace";
 
   @SchemaProperty(title = "Root XPath", name = ROOT_XPATH, required = true, defaultValue = "")
   private final String rootXPath;
@@ -59,6 +63,23 @@ public class XMLTransformConfig extends StageConfig {
     
   @SchemaProperty(title="Cleanup XML Data", name=CLEANUP_XML, defaultValue="true")
   private final boolean cleanUpXML;
+    
+  // split records with a streaming parser - only used if rootXPath is a simple element path (/records/record)
+  @SchemaProperty(title="Stream Records", name=STREAM_RECORDS, defaultValue="false")
+  private final boolean streamRecords;
+    
+  // records of bodies whose rootXPath matches at least this many are mapped in parallel, 0 = never
+  // (not if the parent is kept: each record starts from a copy of the parent with the records before it)
+  @SchemaProperty(title="Parallel Record Threshold", name=PARALLEL_RECORD_THRESHOLD, defaultValue="0")
+  private final int parallelRecordThreshold;
+    
+  // parse with namespaces - XPath name tests then need the namespace of an element, records are not streamed
+  @SchemaProperty(title="Namespace Aware", name=NAMESPACE_AWARE, defaultValue="false")
+  private final boolean namespaceAware;
+    
+  // drop whitespace in element content - element content is declared in an (internal) DTD
+  @SchemaProperty(title="Ignore Element Content Whitespace", name=IGNORE_WHITESPACE, defaultValue="false")
+  private final boolean ignoreWhitespace;
 	
   /**
    * Creates configuration for the XMLTranformStage
@@ -68,6 +89,10 @@ public class XMLTransformConfig extends StageConfig {
    * @param bodyField Name of the field containing document's body
    * @param mappings Field names mapping
    * @param metadata Additional metadata
+   * @param streamRecords Split records while parsing, holding one record in memory instead of the document
+   * @param parallelRecordThreshold Number of records from which the records of a body are mapped in parallel
+   * @param namespaceAware Parse XML with namespaces
+   * @param ignoreWhitespace Drop whitespace in element content
    */
   @JsonCreator
   public XMLTransformConfig(
@@ -79,7 +104,11 @@ public class XMLTransformConfig extends StageConfig {
       @JsonProperty(METADATA) List<AdditionalMetadata> metadata,
       @JsonProperty(KEEP_PARENT) Boolean keepParent,
       @JsonProperty(SUB_DOCUMENT_FIELD) String subDocField,
-      @JsonProperty(CLEANUP_XML) Boolean cleanUpXML) {
+      @JsonProperty(CLEANUP_XML) Boolean cleanUpXML,
+      @JsonProperty(STREAM_RECORDS) Boolean streamRecords,
+      @JsonProperty(PARALLEL_RECORD_THRESHOLD) Integer parallelRecordThreshold,
+      @JsonProperty(NAMESPACE_AWARE) Boolean namespaceAware,
+      @JsonProperty(IGNORE_WHITESPACE) Boolean ignoreWhitespace) {
     super(id);
     this.rootXPath = rootXPath;
     this.parentIdField = parentIdField;
@@ -96,6 +125,10 @@ public class XMLTransformConfig extends StageConfig {
     if (subDocField != null) this.keepParent = true;
       
     this.cleanUpXML = cleanUpXML == null ? false : cleanUpXML;
+    this.streamRecords = streamRecords == null ? false : streamRecords;
+    this.parallelRecordThreshold = parallelRecordThreshold == null ? 0 : parallelRecordThreshold;
+    this.namespaceAware = namespaceAware == null ? false : namespaceAware;
+    this.ignoreWhitespace = ignoreWhitespace == null ? false : ignoreWhitespace;
       
     if(mappings != null) {
       this.mappings = Collections.unmodifiableList(mappings);
@@ -150,6 +183,26 @@ public class XMLTransformConfig extends StageConfig {
     return this.cleanUpXML;
   }
     
+  @JsonProperty(STREAM_RECORDS)
+  public boolean shouldStreamRecords( ) {
+    return this.streamRecords;
+  }
+    
+  @JsonProperty(PARALLEL_RECORD_THRESHOLD)
+  public int getParallelRecordThreshold( ) {
+    return this.parallelRecordThreshold;
+  }
+    
+  @JsonProperty(NAMESPACE_AWARE)
+  public boolean isNamespaceAware( ) {
+    return this.namespaceAware;
+  }
+    
+  @JsonProperty(IGNORE_WHITESPACE)
+  public boolean shouldIgnoreWhitespace( ) {
+    return this.ignoreWhitespace;
+  }
+    
   public static class XPathMappingRule {
 
     public static final String XPATH = "xpath";
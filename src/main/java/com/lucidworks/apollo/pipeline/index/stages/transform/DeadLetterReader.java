@@ -0,0 +1,251 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.BufferedInputStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the dead letter segments written by DeadLetterWriter. Only indexed records are read.
+ *
+ * A replay reads the indexes of all its segments before the first record is handled, so records that fail again
+ * while being replayed are not read a second time. Replayed segments are deleted once all their records have been
+ * handled - a replay that stops with an error leaves the remaining segments for the next one.
+ */
+public final class DeadLetterReader {
+  private transient static final Logger LOG = LoggerFactory.getLogger( DeadLetterReader.class );
+
+  /**
+   * Receives replayed records in batches.
+   */
+  public interface BatchHandler {
+    void handle( List<DeadLetterRecord> batch ) throws Exception;
+  }
+
+  private final File directory;
+
+  public DeadLetterReader( String path ) {
+    this.directory = new File( path );
+  }
+
+  /**
+   * Reads the record with the given id, the most recent one if it failed more than once.
+   *
+   * @return null if there is no record for id.
+   */
+  public DeadLetterRecord read( String id ) throws IOException {
+    int[] segments = listSegments( );
+    for (int i = segments.length - 1; i >= 0; i--) {
+      // block offset and position in the block of the last record with this id
+      long matchOffset = -1;
+      int matchOrdinal = 0;
+      long offset = -1;
+      int ordinal = 0;
+      for (IndexEntry entry : readIndex( segments[i] ) ) {
+        if (entry.offset != offset) {
+          offset = entry.offset;
+          ordinal = 0;
+        }
+        if (entry.id.equals( id )) {
+          matchOffset = offset;
+          matchOrdinal = ordinal;
+        }
+        ++ordinal;
+      }
+
+      if (matchOffset >= 0) {
+        DataInputStream in = openBlock( segments[i], matchOffset );
+        try {
+          for (int r = 0; r < matchOrdinal; r++) {
+            readRecord( in );
+          }
+          return readRecord( in );
+        }
+        finally {
+          in.close( );
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Replays all segments - see replay( batchSize, lastSegment, handler ).
+   */
+  public int replay( int batchSize, BatchHandler handler ) throws Exception {
+    return replay( batchSize, Integer.MAX_VALUE, handler );
+  }
+
+  /**
+   * Reads the indexed records of the segments up to lastSegment, oldest first, and passes them to the handler in
+   * batches of up to batchSize. The segments must be complete - see DeadLetterWriter.rollSegment( ). Each segment
+   * is deleted once the handler has returned for all its records.
+   *
+   * @return the number of records read
+   */
+  public int replay( int batchSize, int lastSegment, BatchHandler handler ) throws Exception {
+    ArrayList<Integer> segments = new ArrayList<Integer>( );
+    ArrayList<List<IndexEntry>> indexes = new ArrayList<List<IndexEntry>>( );
+    for (int segment : listSegments( ) ) {
+      if (segment <= lastSegment) {
+        segments.add( segment );
+        indexes.add( readIndex( segment ) );
+      }
+    }
+
+    int nRecords = 0;
+    ArrayList<DeadLetterRecord> batch = new ArrayList<DeadLetterRecord>( batchSize );
+    // segments read completely - deleted when the batch holding their last records has been handled
+    ArrayList<Integer> consumed = new ArrayList<Integer>( );
+    for (int s = 0; s < segments.size( ); s++) {
+      int segment = segments.get( s );
+      List<IndexEntry> index = indexes.get( s );
+      int i = 0;
+      while (i < index.size( )) {
+        // all records of a block are read with one open and (for compressed segments) one inflate
+        long offset = index.get( i ).offset;
+        DataInputStream in = openBlock( segment, offset );
+        try {
+          while (i < index.size( ) && index.get( i ).offset == offset) {
+            batch.add( readRecord( in ) );
+            ++i;
+            if (batch.size( ) >= batchSize) {
+              nRecords += flush( batch, handler );
+              delete( consumed );
+            }
+          }
+        }
+        finally {
+          in.close( );
+        }
+      }
+      consumed.add( segment );
+    }
+    nRecords += flush( batch, handler );
+    delete( consumed );
+    return nRecords;
+  }
+
+  // index first - a segment without an index is never read
+  private void delete( ArrayList<Integer> segments ) {
+    for (int segment : segments ) {
+      String baseName = DeadLetterWriter.segmentName( segment );
+      deleteFile( new File( directory, baseName + DeadLetterWriter.INDEX_SUFFIX ) );
+      deleteFile( new File( directory, baseName + DeadLetterWriter.SEGMENT_SUFFIX ) );
+      deleteFile( new File( directory, baseName + DeadLetterWriter.SEGMENT_SUFFIX + DeadLetterWriter.GZIP_SUFFIX ) );
+    }
+    segments.clear( );
+  }
+
+  private static void deleteFile( File file ) {
+    if (file.exists( ) && !file.delete( )) {
+      LOG.warn( "Could not delete replayed dead letter file " + file );
+    }
+  }
+
+  private int flush( ArrayList<DeadLetterRecord> batch, BatchHandler handler ) throws Exception {
+    int n = batch.size( );
+    if (n > 0) {
+      handler.handle( new ArrayList<DeadLetterRecord>( batch ) );
+      batch.clear( );
+    }
+    return n;
+  }
+
+  private int[] listSegments( ) {
+    String[] names = directory.list( );
+    if (names == null) return new int[0];
+
+    int[] segments = new int[ names.length ];
+    int n = 0;
+    for (String name : names ) {
+      if (name.endsWith( DeadLetterWriter.INDEX_SUFFIX )) {
+        int segment = DeadLetterWriter.segmentNumber( name );
+        if (segment >= 0) segments[n++] = segment;
+      }
+    }
+    segments = Arrays.copyOf( segments, n );
+    Arrays.sort( segments );
+    return segments;
+  }
+
+  private static final class IndexEntry {
+    final long offset;
+    final String id;
+
+    IndexEntry( long offset, String id ) {
+      this.offset = offset;
+      this.id = id;
+    }
+  }
+
+  private List<IndexEntry> readIndex( int segment ) throws IOException {
+    ArrayList<IndexEntry> entries = new ArrayList<IndexEntry>( );
+    File indexFile = new File( directory, DeadLetterWriter.segmentName( segment ) + DeadLetterWriter.INDEX_SUFFIX );
+    BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( indexFile ), "UTF-8" ) );
+    try {
+      String line;
+      while ((line = reader.readLine( )) != null) {
+        int tab = line.indexOf( '\t' );
+        if (tab < 0) continue;
+        try {
+          entries.add( new IndexEntry( Long.parseLong( line.substring( 0, tab ) ), DeadLetterWriter.readIndexId( line, tab + 1 ) ) );
+        }
+        catch ( NumberFormatException nfe ) {
+          LOG.warn( "Skipping bad index line in " + indexFile + ": " + line );
+        }
+      }
+    }
+    finally {
+      reader.close( );
+    }
+    return entries;
+  }
+
+  private DataInputStream openBlock( int segment, long offset ) throws IOException {
+    String baseName = DeadLetterWriter.segmentName( segment ) + DeadLetterWriter.SEGMENT_SUFFIX;
+    File gzFile = new File( directory, baseName + DeadLetterWriter.GZIP_SUFFIX );
+    boolean compressed = gzFile.exists( );
+    FileInputStream fis = new FileInputStream( (compressed) ? gzFile : new File( directory, baseName ) );
+    try {
+      fis.getChannel( ).position( offset );
+      InputStream in = (compressed) ? new GZIPInputStream( fis, 8192 ) : new BufferedInputStream( fis, 8192 );
+      return new DataInputStream( in );
+    }
+    catch ( IOException ioe ) {
+      fis.close( );
+      throw ioe;
+    }
+  }
+
+  private static DeadLetterRecord readRecord( DataInputStream in ) throws IOException {
+    long timestamp = in.readLong( );
+    String id = readString( in );
+    String format = readString( in );
+    String message = readString( in );
+    String payload = readString( in );
+    return new DeadLetterRecord( id, timestamp, message, format, payload );
+  }
+
+  private static String readString( DataInputStream in ) throws IOException {
+    int length = in.readInt( );
+    if (length < 0) return null;
+    if (length > 1 << 30) throw new EOFException( "Bad string length " + length );
+    byte[] bytes = new byte[ length ];
+    in.readFully( bytes );
+    return new String( bytes, "UTF-8" );
+  }
+}
@@ -0,0 +1,72 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * A record that failed to process - its id, the time it failed, why and its original data string.
+ *
+ * The format is set for a single record taken from a document - a jsonl record ("json") or a record of a file
+ * ("json" or "xml") - and null if the payload is the input field value of the document itself.
+ *
+ * The stack trace of a failure is only rendered by the dead letter writer thread, never on the indexing thread.
+ */
+public final class DeadLetterRecord {
+  private final String id;
+  private final long timestamp;
+  private final String message;
+  private final Throwable error;
+  private final String format;
+  private final String payload;
+
+  public DeadLetterRecord( String id, long timestamp, String message, String payload ) {
+    this( id, timestamp, message, null, null, payload );
+  }
+
+  public DeadLetterRecord( String id, long timestamp, String message, String format, String payload ) {
+    this( id, timestamp, message, null, format, payload );
+  }
+
+  DeadLetterRecord( String id, long timestamp, String message, Throwable error, String format, String payload ) {
+    this.id = id;
+    this.timestamp = timestamp;
+    this.message = message;
+    this.error = error;
+    this.format = format;
+    this.payload = payload;
+  }
+
+  public String getId( ) {
+    return id;
+  }
+
+  public long getTimestamp( ) {
+    return timestamp;
+  }
+
+  /**
+   * @return the failure message - followed by the stack trace if the record failed with an exception.
+   */
+  public String getMessage( ) {
+    if (error == null) {
+      return message;
+    }
+
+    StringWriter sw = new StringWriter( );
+    PrintWriter pw = new PrintWriter( sw );
+    error.printStackTrace( pw );
+    pw.flush( );
+    return message + "\n" + sw.toString( );
+  }
+
+  /**
+   * @return the format of a single record payload, null for the input of a document.
+   */
+  public String getFormat( ) {
+    return format;
+  }
+
+  public String getPayload( ) {
+    return payload;
+  }
+}
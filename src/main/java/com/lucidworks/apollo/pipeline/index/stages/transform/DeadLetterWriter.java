@@ -0,0 +1,406 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dead letter writer for the failed records of a failedRecordsPath. Indexing threads only put records on a bounded
+ * queue - a background thread drains the queue in batches and appends them to rolling segment files.
+ *
+ * Segment files are named failed-NNNNNN.seg (failed-NNNNNN.seg.gz if compressed) and are never appended to
+ * after a restart. Each batch is written as one block (one gzip member if compressed). Next to each segment
+ * failed-NNNNNN.idx lists the block offset and id of every record, one "offset TAB id" line per record - a
+ * backslash, CR or LF in an id is escaped as \\, \r or \n.
+ * Records in a block are stored as: timestamp (long), id, format, message, payload - strings as an int byte length
+ * (-1 for null) followed by UTF-8 bytes.
+ *
+ * If the queue is full, offer( ) drops records (and counts them) rather than stalling the pipeline. Replays
+ * use put( ), which waits for space, and flush( ) to know their records are written before deleting segments.
+ *
+ * There is one writer per path - compression and segment size are fixed by the first config that files a record
+ * there. rollSegment( ) closes the open segment so that a DeadLetterReader can replay and remove the complete ones.
+ */
+public final class DeadLetterWriter {
+  private transient static final Logger LOG = LoggerFactory.getLogger( DeadLetterWriter.class );
+
+  static final String SEGMENT_PREFIX = "failed-";
+  static final String SEGMENT_SUFFIX = ".seg";
+  static final String GZIP_SUFFIX = ".gz";
+  static final String INDEX_SUFFIX = ".idx";
+
+  private static final int QUEUE_SIZE = 10000;
+  private static final int MAX_BATCH = 500;
+
+  private static final ConcurrentHashMap<String, DeadLetterWriter> writers = new ConcurrentHashMap<String, DeadLetterWriter>( );
+
+  static {
+    Runtime.getRuntime( ).addShutdownHook( new Thread( "dead-letter-shutdown" ) {
+      @Override
+      public void run( ) {
+        for (DeadLetterWriter writer : writers.values( ) ) {
+          writer.close( );
+        }
+      }
+    } );
+  }
+
+  private final File directory;
+  private final ArrayBlockingQueue<DeadLetterRecord> queue = new ArrayBlockingQueue<DeadLetterRecord>( QUEUE_SIZE );
+  private final Thread writerThread;
+  private volatile boolean running = true;
+
+  private final boolean compress;
+  private final int segmentMB;
+  private final long maxSegmentBytes;
+  private volatile boolean warnedSettings;
+
+  private final AtomicLong nQueued = new AtomicLong( );
+  private final AtomicLong nDropped = new AtomicLong( );
+  private final AtomicLong nWritten = new AtomicLong( );
+  // records taken off the queue - written or dropped on a write error
+  private final AtomicLong nHandled = new AtomicLong( );
+
+  // writer thread state
+  private int segmentNumber;
+  private FileOutputStream segmentOut;
+  private Writer indexOut;
+  private boolean segmentCompressed;
+  private final ByteArrayOutputStream blockBuffer = new ByteArrayOutputStream( 64 * 1024 );
+  private final DataOutputStream blockOut = new DataOutputStream( blockBuffer );
+  private final StringBuilder indexLines = new StringBuilder( );
+
+  private DeadLetterWriter( File directory, boolean compress, int segmentMB ) {
+    this.directory = directory;
+    this.compress = compress;
+    this.segmentMB = segmentMB;
+    this.maxSegmentBytes = Math.max( 1, segmentMB ) * 1024L * 1024L;
+    this.segmentNumber = lastSegmentNumber( directory );
+    this.writerThread = new Thread( new Runnable( ) {
+      @Override
+      public void run( ) {
+        drain( );
+      }
+    }, "dead-letter-writer " + directory.getName( ) );
+    this.writerThread.setDaemon( true );
+  }
+
+  /**
+   * Returns the writer for a failed records path, starting it on first use. The settings of the first call are
+   * kept - a call with other settings is logged once.
+   */
+  public static DeadLetterWriter forPath( String path, boolean compress, int segmentMB ) {
+    DeadLetterWriter writer = writers.get( path );
+    if (writer == null) {
+      DeadLetterWriter newWriter = new DeadLetterWriter( new File( path ), compress, segmentMB );
+      writer = writers.putIfAbsent( path, newWriter );
+      if (writer == null) {
+        writer = newWriter;
+        writer.writerThread.start( );
+        return writer;
+      }
+    }
+    if ((writer.compress != compress || writer.segmentMB != segmentMB) && !writer.warnedSettings) {
+      writer.warnedSettings = true;
+      LOG.warn( "Dead letter writer for " + path + " keeps compress=" + writer.compress + ", segmentMB=" + writer.segmentMB
+              + " - ignoring compress=" + compress + ", segmentMB=" + segmentMB );
+    }
+    return writer;
+  }
+
+  /**
+   * Closes the open segment of the writer of a failed records path, if one is running. Records written from now on
+   * go to a new segment.
+   *
+   * @return the number of the last complete segment - the segments up to it are not written to any more.
+   */
+  public static int rollSegment( String path ) {
+    DeadLetterWriter writer = writers.get( path );
+    return (writer != null) ? writer.roll( ) : lastSegmentNumber( new File( path ) );
+  }
+
+  /**
+   * Queues a record without blocking.
+   *
+   * @return false if the queue was full and the record was dropped.
+   */
+  public boolean offer( DeadLetterRecord record ) {
+    if (running && queue.offer( record )) {
+      nQueued.incrementAndGet( );
+      return true;
+    }
+
+    long dropped = nDropped.incrementAndGet( );
+    if (dropped == 1 || dropped % 1000 == 0) {
+      LOG.warn( "Dead letter queue for " + directory + " is full - " + dropped + " failed records dropped" );
+    }
+    return false;
+  }
+
+  /**
+   * Queues a record, waiting while the queue is full.
+   *
+   * @return false if the writer is closed (or the wait was interrupted) and the record was dropped.
+   */
+  public boolean put( DeadLetterRecord record ) {
+    try {
+      if (running) {
+        queue.put( record );
+        nQueued.incrementAndGet( );
+        return true;
+      }
+    }
+    catch ( InterruptedException ie ) {
+      Thread.currentThread( ).interrupt( );
+    }
+
+    nDropped.incrementAndGet( );
+    LOG.warn( "Dead letter writer for " + directory + " is closed - failed record " + record.getId( ) + " dropped" );
+    return false;
+  }
+
+  /**
+   * Waits until the records queued so far have been written - or dropped on a write error, see getDroppedCount( ).
+   */
+  public void flush( ) throws InterruptedException {
+    long queued = nQueued.get( );
+    synchronized( this ) {
+      while (nHandled.get( ) < queued && writerThread.isAlive( )) {
+        wait( 1000 );
+      }
+    }
+  }
+
+  public long getQueuedCount( ) {
+    return nQueued.get( );
+  }
+
+  public long getDroppedCount( ) {
+    return nDropped.get( );
+  }
+
+  public long getWrittenCount( ) {
+    return nWritten.get( );
+  }
+
+  public int getQueueDepth( ) {
+    return queue.size( );
+  }
+
+  /**
+   * Stops accepting records, writes what is queued and closes the current segment.
+   */
+  public void close( ) {
+    // no interrupt - that would close the segment file channel; the writer notices within a poll interval
+    running = false;
+    try {
+      writerThread.join( 10000 );
+    }
+    catch ( InterruptedException ie ) {
+      Thread.currentThread( ).interrupt( );
+    }
+  }
+
+  private synchronized int roll( ) {
+    closeSegment( );
+    return segmentNumber;
+  }
+
+  private void drain( ) {
+    ArrayList<DeadLetterRecord> batch = new ArrayList<DeadLetterRecord>( MAX_BATCH );
+    while (running || !queue.isEmpty( )) {
+      try {
+        DeadLetterRecord first = queue.poll( 1, TimeUnit.SECONDS );
+        if (first == null) continue;
+        batch.add( first );
+      }
+      catch ( InterruptedException ie ) {
+        running = false;
+      }
+
+      queue.drainTo( batch, MAX_BATCH - batch.size( ) );
+      if (!batch.isEmpty( )) {
+        writeBatch( batch );
+        batch.clear( );
+      }
+    }
+    roll( );
+  }
+
+  // synchronized with roll( ) - a segment is never closed in the middle of a block
+  private synchronized void writeBatch( ArrayList<DeadLetterRecord> batch ) {
+    try {
+      if (segmentOut == null) {
+        openSegment( );
+      }
+
+      long blockOffset = segmentOut.getChannel( ).position( );
+      blockBuffer.reset( );
+      indexLines.setLength( 0 );
+      for (DeadLetterRecord record : batch ) {
+        blockOut.writeLong( record.getTimestamp( ) );
+        writeString( blockOut, record.getId( ) );
+        writeString( blockOut, record.getFormat( ) );
+        writeString( blockOut, record.getMessage( ) );
+        writeString( blockOut, record.getPayload( ) );
+        indexLines.append( blockOffset ).append( '\t' );
+        appendIndexId( indexLines, record.getId( ) );
+        indexLines.append( '\n' );
+      }
+      blockOut.flush( );
+
+      if (segmentCompressed) {
+        GZIPOutputStream gzOut = new GZIPOutputStream( new NonClosingOutputStream( segmentOut ), 8192 );
+        blockBuffer.writeTo( gzOut );
+        gzOut.close( );
+      }
+      else {
+        blockBuffer.writeTo( segmentOut );
+      }
+      segmentOut.flush( );
+
+      // index after data - an indexed record is always readable
+      indexOut.write( indexLines.toString( ) );
+      indexOut.flush( );
+      nWritten.addAndGet( batch.size( ) );
+
+      if (segmentOut.getChannel( ).position( ) >= maxSegmentBytes) {
+        closeSegment( );
+      }
+    }
+    catch ( IOException ioe ) {
+      LOG.error( "Could not write " + batch.size( ) + " failed records to " + directory + ": " + ioe );
+      nDropped.addAndGet( batch.size( ) );
+      // start a new segment with the next batch
+      closeSegment( );
+    }
+    finally {
+      nHandled.addAndGet( batch.size( ) );
+      notifyAll( );
+    }
+  }
+
+  private void openSegment( ) throws IOException {
+    if (!directory.isDirectory( ) && !directory.mkdirs( )) {
+      throw new IOException( "Cannot create " + directory );
+    }
+
+    ++segmentNumber;
+    segmentCompressed = compress;
+    String baseName = segmentName( segmentNumber );
+    segmentOut = new FileOutputStream( new File( directory, baseName + SEGMENT_SUFFIX + ((segmentCompressed) ? GZIP_SUFFIX : "") ) );
+    indexOut = new OutputStreamWriter( new FileOutputStream( new File( directory, baseName + INDEX_SUFFIX ) ), "UTF-8" );
+  }
+
+  private void closeSegment( ) {
+    try {
+      if (segmentOut != null) segmentOut.close( );
+      if (indexOut != null) indexOut.close( );
+    }
+    catch ( IOException ioe ) {
+      LOG.error( "Could not close dead letter segment " + segmentNumber + " in " + directory + ": " + ioe );
+    }
+    segmentOut = null;
+    indexOut = null;
+  }
+
+  static String segmentName( int segmentNumber ) {
+    return SEGMENT_PREFIX + String.format( "%06d", segmentNumber );
+  }
+
+  // segment number from a segment or index file name, -1 if the name is not one
+  static int segmentNumber( String fileName ) {
+    if (!fileName.startsWith( SEGMENT_PREFIX )) return -1;
+    int end = fileName.indexOf( '.' );
+    try {
+      return Integer.parseInt( fileName.substring( SEGMENT_PREFIX.length( ), (end < 0) ? fileName.length( ) : end ) );
+    }
+    catch ( NumberFormatException nfe ) {
+      return -1;
+    }
+  }
+
+  private static int lastSegmentNumber( File directory ) {
+    int last = 0;
+    String[] names = directory.list( );
+    if (names != null) {
+      for (String name : names ) {
+        last = Math.max( last, segmentNumber( name ) );
+      }
+    }
+    return last;
+  }
+
+  // an id on one index line
+  static void appendIndexId( StringBuilder line, String id ) {
+    for (int i = 0; i < id.length( ); i++) {
+      char ch = id.charAt( i );
+      switch (ch) {
+        case '\\': line.append( "\\\\" ); break;
+        case '\n': line.append( "\\n" ); break;
+        case '\r': line.append( "\\r" ); break;
+        default: line.append( ch );
+      }
+    }
+  }
+
+  // the id of an index line - the inverse of appendIndexId( )
+  static String readIndexId( String line, int start ) {
+    if (line.indexOf( '\\', start ) < 0) return line.substring( start );
+
+    StringBuilder id = new StringBuilder( line.length( ) - start );
+    for (int i = start; i < line.length( ); i++) {
+      char ch = line.charAt( i );
+      if (ch == '\\' && i + 1 < line.length( )) {
+        ch = line.charAt( ++i );
+        if (ch == 'n') ch = '\n';
+        else if (ch == 'r') ch = '\r';
+      }
+      id.append( ch );
+    }
+    return id.toString( );
+  }
+
+  private static void writeString( DataOutputStream out, String value ) throws IOException {
+    if (value == null) {
+      out.writeInt( -1 );
+      return;
+    }
+    byte[] bytes = value.getBytes( "UTF-8" );
+    out.writeInt( bytes.length );
+    out.write( bytes );
+  }
+
+  // lets a GZIPOutputStream be closed (which releases its Deflater) without closing the segment file
+  private static final class NonClosingOutputStream extends FilterOutputStream {
+    NonClosingOutputStream( OutputStream out ) {
+      super( out );
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len ) throws IOException {
+      out.write( b, off, len );
+    }
+
+    @Override
+    public void close( ) throws IOException {
+      flush( );
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DocumentBuilders and StAX factories for XMLTransformStage, created once per thread and reused: a DocumentBuilder
+ * is reset( ) before it is handed out again.
+ *
+ * Parsers never go to the network or the file system: secure processing is on, external DTDs and external entities
+ * are not loaded (an internal DTD subset still declares entities and default attributes). Namespace awareness and
+ * ignoring element content whitespace are set per config - a thread has a builder for each combination.
+ */
+final class DocumentBuilderPool {
+  private transient static final Logger LOG = LoggerFactory.getLogger( DocumentBuilderPool.class );
+
+  private static final String LOAD_EXTERNAL_DTD = "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+  private static final String EXTERNAL_GENERAL_ENTITIES = "http://xml.org/sax/features/external-general-entities";
+  private static final String EXTERNAL_PARAMETER_ENTITIES = "http://xml.org/sax/features/external-parameter-entities";
+  private static final String REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+  private static final ThreadLocal<DocumentBuilder[]> BUILDERS = new ThreadLocal<DocumentBuilder[]>( ) {
+    @Override
+    protected DocumentBuilder[] initialValue( ) {
+      return new DocumentBuilder[ 4 ];
+    }
+  };
+
+  private static final ThreadLocal<XMLInputFactory> INPUT_FACTORIES = new ThreadLocal<XMLInputFactory>( ) {
+    @Override
+    protected XMLInputFactory initialValue( ) {
+      return newInputFactory( );
+    }
+  };
+
+  private DocumentBuilderPool( ) { }
+
+  /**
+   * @return the DocumentBuilder of the calling thread, reset.
+   */
+  static DocumentBuilder getDocumentBuilder( boolean namespaceAware, boolean ignoreWhitespace )
+                                                                   throws ParserConfigurationException {
+    DocumentBuilder[] builders = BUILDERS.get( );
+    int slot = ((namespaceAware) ? 2 : 0) + ((ignoreWhitespace) ? 1 : 0);
+    DocumentBuilder builder = builders[slot];
+    if (builder == null) {
+      builder = newFactory( namespaceAware, ignoreWhitespace ).newDocumentBuilder( );
+      builders[slot] = builder;
+    }
+    else {
+      builder.reset( );
+    }
+    return builder;
+  }
+
+  /**
+   * @return the StAX factory of the calling thread - not namespace aware, CDATA sections reported as such.
+   */
+  static XMLInputFactory getInputFactory( ) {
+    return INPUT_FACTORIES.get( );
+  }
+
+  private static DocumentBuilderFactory newFactory( boolean namespaceAware, boolean ignoreWhitespace )
+                                                                        throws ParserConfigurationException {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance( );
+    factory.setNamespaceAware( namespaceAware );
+    factory.setIgnoringElementContentWhitespace( ignoreWhitespace );
+    factory.setXIncludeAware( false );
+    factory.setFeature( XMLConstants.FEATURE_SECURE_PROCESSING, true );
+    setFeature( factory, LOAD_EXTERNAL_DTD, false );
+    setFeature( factory, EXTERNAL_GENERAL_ENTITIES, false );
+    setFeature( factory, EXTERNAL_PARAMETER_ENTITIES, false );
+    return factory;
+  }
+
+  private static void setFeature( DocumentBuilderFactory factory, String feature, boolean value ) {
+    try {
+      factory.setFeature( feature, value );
+    }
+    catch ( ParserConfigurationException pce ) {
+      LOG.warn( factory.getClass( ).getName( ) + " does not support " + feature );
+    }
+  }
+
+  private static XMLInputFactory newInputFactory( ) {
+    XMLInputFactory factory = XMLInputFactory.newInstance( );
+    // element and attribute names as written, xmlns attributes as attributes
+    factory.setProperty( XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE );
+    factory.setProperty( XMLInputFactory.IS_COALESCING, Boolean.FALSE );
+    factory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE );
+    try {
+      // the JDK parser reports CDATA sections as characters unless asked
+      factory.setProperty( REPORT_CDATA, Boolean.TRUE );
+    }
+    catch ( IllegalArgumentException iae ) {
+      // other parsers report them
+    }
+    return factory;
+  }
+}
@@ -0,0 +1,140 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import com.modinfodesigns.property.IProperty;
+import com.modinfodesigns.property.PropertyList;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Property typing for dynamic fields. The kind of a property is looked up by its class - the type name of a class is
+ * only compared once - and a PropertyList has the kind of its entries if they all have the same kind (STRING
+ * otherwise), which is what comparing the entries' type names gives.
+ *
+ * Suffixes holds the dynamic field suffixes of the members of one scope - the record or the child documents of one
+ * mapping - that are known without looking at the property: explicit ones from the config and, if learning is on,
+ * the suffix picked for the first property seen with the name (not for strings - their suffix depends on the length
+ * of the value, which is read to be indexed anyway). Single and multi-valued suffixes are learned apart:
+ * a member that is a list in some records gets a multi-valued suffix there whatever was seen first.
+ */
+final class DynamicFieldTypes {
+
+  enum Kind {
+    INTEGER, SCALAR, DATE, BOOLEAN, TEXT, STRING
+  }
+
+  // kinds by property class - PropertyList is typed by its entries and never cached
+  private static final ConcurrentHashMap<Class<?>, Kind> KINDS = new ConcurrentHashMap<Class<?>, Kind>( );
+
+  private DynamicFieldTypes( ) { }
+
+  static Kind kindOf( IProperty prop ) {
+    if (!(prop instanceof PropertyList)) {
+      return classKind( prop );
+    }
+
+    // first property in list defines it - heterogeneous lists are strings
+    Kind first = null;
+    Iterator<IProperty> entries = ((PropertyList)prop).getProperties( );
+    while (entries != null && entries.hasNext( )) {
+      Kind kind = classKind( entries.next( ) );
+      if (first == null) {
+        first = kind;
+      }
+      else if (kind != first) {
+        return Kind.STRING;
+      }
+    }
+    return (first != null) ? first : Kind.STRING;
+  }
+
+  private static Kind classKind( IProperty prop ) {
+    if (prop instanceof PropertyList) {
+      return typeKind( prop.getType( ) );
+    }
+    Kind kind = KINDS.get( prop.getClass( ) );
+    if (kind == null) {
+      kind = typeKind( prop.getType( ) );
+      KINDS.put( prop.getClass( ), kind );
+    }
+    return kind;
+  }
+
+  private static Kind typeKind( String type ) {
+    if (type == null) return Kind.STRING;
+    if (type.equals( "com.modinfodesigns.property.quantity.IntegerProperty" )) return Kind.INTEGER;
+    if (type.equals( "com.modinfodesigns.property.quantity.ScalarQuantity" )) return Kind.SCALAR;
+    if (type.equals( "com.modinfodesigns.property.time.DateProperty" )) return Kind.DATE;
+    if (type.equals( "com.modinfodesigns.property.BooleanProperty" )) return Kind.BOOLEAN;
+    if (type.equals( "com.modinfodesigns.property.string.TextProperty" )) return Kind.TEXT;
+    return Kind.STRING;
+  }
+
+  /**
+   * Known suffixes of the members of one scope, shared by all threads.
+   */
+  static final class Suffixes {
+    // bounds what is learned - member names may be data
+    private static final int MAX_LEARNED = 65536;
+
+    private final Map<String, String> explicit;
+    private final ConcurrentHashMap<String, String> learned;
+    private final ConcurrentHashMap<String, String> learnedMulti;
+    private volatile boolean frozen;
+
+    /**
+     * @param explicit suffixes by member name, used as they are
+     * @param learn    remember the suffix of the first property seen with a name
+     */
+    Suffixes( Map<String, String> explicit, boolean learn ) {
+      this.explicit = explicit;
+      this.learned = (learn) ? new ConcurrentHashMap<String, String>( ) : null;
+      this.learnedMulti = (learn) ? new ConcurrentHashMap<String, String>( ) : null;
+      this.frozen = !learn;
+    }
+
+    /**
+     * @return the suffix for a member name or null if the property has to be inspected.
+     */
+    String get( String name, boolean multiValue ) {
+      String suffix = explicit.get( name );
+      if (suffix == null && learned != null) {
+        suffix = ((multiValue) ? learnedMulti : learned).get( name );
+      }
+      return suffix;
+    }
+
+    void learn( String name, boolean multiValue, String suffix ) {
+      if (frozen) return;
+      ConcurrentHashMap<String, String> known = (multiValue) ? learnedMulti : learned;
+      if (known.size( ) < MAX_LEARNED) {
+        known.putIfAbsent( name, suffix );
+      }
+    }
+
+    /**
+     * Stops learning - names that are not known by now are inspected every time.
+     */
+    void freeze( ) {
+      frozen = true;
+    }
+
+    /**
+     * Adds the known suffixes to schema, keyed by prefix + name - the multi-valued one if both were learned.
+     */
+    void export( String prefix, Map<String, String> schema ) {
+      if (learned != null) {
+        for (Map.Entry<String, String> entry : learned.entrySet( ) ) {
+          schema.put( prefix + entry.getKey( ), entry.getValue( ) );
+        }
+        for (Map.Entry<String, String> entry : learnedMulti.entrySet( ) ) {
+          schema.put( prefix + entry.getKey( ), entry.getValue( ) );
+        }
+      }
+      for (Map.Entry<String, String> entry : explicit.entrySet( ) ) {
+        schema.put( prefix + entry.getKey( ), entry.getValue( ) );
+      }
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A simple location path of element names, matched against the element path of a streaming XML reader: absolute
+ * (/records/record), descendant (//record or /export//record) and '*' for any element name. Element names are
+ * qualified names as written (prefix:name) - no namespace resolution.
+ */
+final class ElementPath {
+
+  private final String[] steps;
+  private final boolean[] descendant;
+
+  private ElementPath( String[] steps, boolean[] descendant ) {
+    this.steps = steps;
+    this.descendant = descendant;
+  }
+
+  /**
+   * @param relativeIsDescendant true if a relative path matches at any depth, false if it is relative to the
+   *                             document (as an XPath evaluated against the document node)
+   * @throws IllegalArgumentException if the path is not a simple element path
+   */
+  static ElementPath compile( String path, boolean relativeIsDescendant ) {
+    String expr = path.trim( );
+    ArrayList<String> stepList = new ArrayList<String>( );
+    ArrayList<Boolean> descList = new ArrayList<Boolean>( );
+    boolean desc = !expr.startsWith( "/" ) && relativeIsDescendant;
+    String[] parts = expr.split( "/", -1 );
+    for (int i = (expr.startsWith( "/" )) ? 1 : 0; i < parts.length; i++) {
+      String step = parts[i].trim( );
+      if (step.isEmpty( )) {
+        // '//'
+        if (desc && i > 1) {
+          throw new IllegalArgumentException( "Path '" + path + "' has an empty step" );
+        }
+        desc = true;
+        continue;
+      }
+      if (!isName( step )) {
+        throw new IllegalArgumentException( "Path '" + path + "' is not a simple element path" );
+      }
+      stepList.add( step );
+      descList.add( desc );
+      desc = false;
+    }
+    if (stepList.isEmpty( ) || desc) {
+      throw new IllegalArgumentException( "Path '" + path + "' does not end with an element step" );
+    }
+    boolean[] descendant = new boolean[ descList.size( ) ];
+    for (int i = 0; i < descendant.length; i++) {
+      descendant[i] = descList.get( i );
+    }
+    return new ElementPath( stepList.toArray( new String[ stepList.size( ) ] ), descendant );
+  }
+
+  /**
+   * @return true if path compiles - see compile( ).
+   */
+  static boolean isSimple( String path ) {
+    if (path == null) return false;
+    try {
+      compile( path, false );
+      return true;
+    }
+    catch ( IllegalArgumentException iae ) {
+      return false;
+    }
+  }
+
+  /**
+   * @return true if the last element of path (the names of the open elements, outermost first) is matched.
+   */
+  boolean matches( List<String> path ) {
+    return matches( path, steps.length - 1, path.size( ) - 1 );
+  }
+
+  // matches steps [0, s] against the path elements [0, p] - the last step always against the last element
+  private boolean matches( List<String> path, int s, int p ) {
+    if (s < 0) return p < 0;
+    if (p < 0) return false;
+    if (!stepMatches( steps[s], path.get( p ) )) return false;
+    if (!descendant[s]) {
+      return matches( path, s - 1, p - 1 );
+    }
+    // any number of elements may come between this step and the previous one
+    for (int q = p - 1; q >= s - 1; q--) {
+      if (matches( path, s - 1, q )) return true;
+    }
+    return false;
+  }
+
+  private static boolean stepMatches( String step, String name ) {
+    return step.equals( "*" ) || step.equals( name );
+  }
+
+  // '*' or an XML name, optionally prefixed
+  private static boolean isName( String step ) {
+    if (step.equals( "*" )) return true;
+    int colon = step.indexOf( ':' );
+    if (colon != step.lastIndexOf( ':' ) || colon == 0 || colon == step.length( ) - 1) return false;
+    for (int i = 0; i < step.length( ); i++) {
+      char ch = step.charAt( i );
+      boolean start = (i == 0 || i == colon + 1);
+      if (ch == ':') continue;
+      if (Character.isLetter( ch ) || ch == '_') continue;
+      if (!start && (Character.isDigit( ch ) || ch == '-' || ch == '.')) continue;
+      return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,482 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig;
+import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig.FieldMapping;
+import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig.InnerMapping;
+import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig.Mode;
+
+import com.modinfodesigns.property.IProperty;
+import com.modinfodesigns.property.DataObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable execution plan for the FieldMappings of a RichObjectParserConfig. Compiled once per config and
+ * shared by all threads running the stage.
+ *
+ * Input paths are held in a trie keyed by path segment. Each root member referenced by a mapping gets a slot -
+ * the root member properties of a record are collected into an IProperty[] indexed by slot and each MappingStep
+ * resolves its path from its member slot. Input paths that are expressions (wildcards, '**', selectors - see
+ * PathAutomaton) are not in the trie: they are compiled into one automaton that is matched against the record once
+ * for all of them.
+ *
+ * With projection on, a parser asks project( ) for each member of a record and skips the members that neither a
+ * mapping nor a dynamic field needs. Members that are only referenced by mappings are pruned to the trie: below a
+ * node that no mapping ends at only the children in the trie are materialized.
+ */
+final class FieldMappingPlan {
+  private transient static final Logger LOG = LoggerFactory.getLogger( FieldMappingPlan.class );
+
+  private static final int[] NO_STEPS = new int[0];
+    
+  // bounds the dynamic field decisions cached per plan - member names may be data
+  private static final int MAX_CACHED_NAMES = 4096;
+
+  /**
+   * Trie node for one input path segment.
+   */
+  static final class PathNode {
+    final String name;
+    final int slot;  // member slot for root members, -1 below the root
+    private Map<String, PathNode> children = Collections.emptyMap( );
+    private int[] steps = NO_STEPS; // mapping steps whose input path ends here
+
+    private PathNode( String name, int slot ) {
+      this.name = name;
+      this.slot = slot;
+    }
+
+    PathNode getChild( String name ) {
+      return children.get( name );
+    }
+
+    /**
+     * @return true if the whole value at this node is needed - some mapping ends here.
+     */
+    boolean isComplete( ) {
+      return steps.length > 0 || this == ALL;
+    }
+
+    boolean hasChildren( ) {
+      return !children.isEmpty( );
+    }
+
+    int[] getSteps( ) {
+      return steps;
+    }
+  }
+
+  /**
+   * Precompiled InnerMapping of a linked or nested object mapping.
+   */
+  static final class InnerStep {
+    final String inputPath;
+    final String solrField;
+    final int pattern;  // path of the step's innerPatterns, -1 for a literal path
+
+    private InnerStep( InnerMapping innerMapping, int pattern ) {
+      this.inputPath = innerMapping.inputPath;
+      this.solrField = innerMapping.solrField;
+      this.pattern = pattern;
+    }
+  }
+
+  /**
+   * Precompiled FieldMapping.
+   */
+  static final class MappingStep {
+    final Mode mode;
+    final String inputPath;
+    final String solrField;
+    final String parentIDField;
+    final int memberSlot;       // -1 for an expression
+    final int pattern;          // path of the plan's automaton, -1 for a literal path
+    final String relativePath;  // input path without leading '/'
+    final String restPath;      // path below the root member, null if the mapping is the member itself
+    final InnerStep[] innerMappings;
+    final PathAutomaton innerPatterns;  // the inner mapping expressions, null if there are none
+    final Set<String> innerInputPaths;
+    final String[] copyParentFields;
+    final DynamicFieldTypes.Suffixes suffixes;  // of the child documents' dynamic fields, null if none are known
+    final boolean nativeValues;
+
+    private MappingStep( FieldMapping fieldMapping, String relativePath, int memberSlot, int pattern,
+                         RichObjectParserConfig config ) {
+      this.mode = fieldMapping.mode;
+      this.inputPath = fieldMapping.inputPath;
+      this.solrField = fieldMapping.solrField;
+      this.parentIDField = fieldMapping.parentIDField;
+      this.memberSlot = memberSlot;
+      this.pattern = pattern;
+      this.relativePath = relativePath;
+      int slash = relativePath.indexOf( "/" );
+      this.restPath = (slash < 0) ? null : relativePath.substring( slash + 1 );
+
+      ArrayList<InnerStep> inner = new ArrayList<InnerStep>( );
+      HashSet<String> innerPaths = new HashSet<String>( );
+      ArrayList<String> patterns = new ArrayList<String>( );
+      if (fieldMapping.innerMappings != null) {
+        for (InnerMapping innerMapping : fieldMapping.innerMappings ) {
+          if (innerMapping.inputPath == null) continue;
+          if (PathAutomaton.isExpression( innerMapping.inputPath )) {
+            try {
+              PathAutomaton.validate( innerMapping.inputPath );
+            }
+            catch ( IllegalArgumentException iae ) {
+              LOG.warn( "Ignoring inner mapping: " + iae.getMessage( ) );
+              continue;
+            }
+            inner.add( new InnerStep( innerMapping, patterns.size( ) ) );
+            patterns.add( innerMapping.inputPath );
+          }
+          else {
+            inner.add( new InnerStep( innerMapping, -1 ) );
+            innerPaths.add( innerMapping.inputPath );
+          }
+        }
+      }
+      this.innerMappings = inner.toArray( new InnerStep[ inner.size( ) ] );
+      this.innerPatterns = (patterns.isEmpty( )) ? null : PathAutomaton.compile( patterns );
+      this.innerInputPaths = Collections.unmodifiableSet( innerPaths );
+
+      this.copyParentFields = (fieldMapping.copyParentFields != null)
+                            ? fieldMapping.copyParentFields.toArray( new String[ fieldMapping.copyParentFields.size( ) ] )
+                            : null;
+      this.suffixes = suffixes( config, relativePath + "/" );
+      this.nativeValues = config.useNativeFieldValues( );
+    }
+  }
+
+  private final RichObjectParserConfig config;
+  private final PathNode root;
+  private final MappingStep[] steps;
+  private final int memberCount;
+  private final PathAutomaton patterns;  // null if all input paths are literal
+  private final int parallelChildThreshold;
+  private final boolean projection;
+  private final Pattern dynamicIncludes;
+  private final Pattern dynamicExcludes;
+  private final ConcurrentHashMap<String, Boolean> dynamicNames = new ConcurrentHashMap<String, Boolean>( );
+  private final DynamicFieldTypes.Suffixes suffixes;  // of the record's dynamic fields, null if none are known
+  private final boolean nativeValues;
+
+  /**
+   * Projection of a member that is needed as a whole.
+   */
+  static final PathNode ALL = new PathNode( null, -1 );
+
+  private FieldMappingPlan( RichObjectParserConfig config, PathNode root, MappingStep[] steps, int memberCount,
+                            PathAutomaton patterns ) {
+    this.config = config;
+    this.root = root;
+    this.steps = steps;
+    this.memberCount = memberCount;
+    this.patterns = patterns;
+    this.parallelChildThreshold = config.getParallelChildThreshold( );
+    this.projection = config.useProjection( );
+    this.dynamicIncludes = compileNamePatterns( config.getDynamicFieldIncludes( ) );
+    this.dynamicExcludes = compileNamePatterns( config.getDynamicFieldExcludes( ) );
+    this.suffixes = suffixes( config, "" );
+    this.nativeValues = config.useNativeFieldValues( );
+  }
+
+  static FieldMappingPlan compile( RichObjectParserConfig config ) {
+    PathNode root = new PathNode( null, -1 );
+    HashMap<String, PathNode> members = new HashMap<String, PathNode>( );
+    ArrayList<MappingStep> steps = new ArrayList<MappingStep>( );
+    ArrayList<String> patterns = new ArrayList<String>( );
+
+    List<FieldMapping> fieldMappings = config.getFieldMappings( );
+    if (fieldMappings != null) {
+      for (FieldMapping fieldMapping : fieldMappings ) {
+        if (fieldMapping.inputPath == null || fieldMapping.mode == null) {
+          LOG.warn( "Ignoring field mapping without input path or mode: " + fieldMapping.inputPath );
+          continue;
+        }
+
+        String relativePath = fieldMapping.inputPath.startsWith( "/" ) ? fieldMapping.inputPath.substring( 1 ) : fieldMapping.inputPath;
+        if (PathAutomaton.isExpression( fieldMapping.inputPath )) {
+          try {
+            PathAutomaton.validate( fieldMapping.inputPath );
+          }
+          catch ( IllegalArgumentException iae ) {
+            LOG.warn( "Ignoring field mapping: " + iae.getMessage( ) );
+            continue;
+          }
+          steps.add( new MappingStep( fieldMapping, relativePath, -1, patterns.size( ), config ) );
+          patterns.add( fieldMapping.inputPath );
+          continue;
+        }
+
+        String[] segments = relativePath.split( "/" );
+
+        PathNode member = members.get( segments[0] );
+        if (member == null) {
+          member = new PathNode( segments[0], members.size( ) );
+          members.put( member.name, member );
+        }
+
+        PathNode node = member;
+        for (int i = 1; i < segments.length; i++) {
+          node = addChild( node, segments[i] );
+        }
+
+        int stepIndex = steps.size( );
+        steps.add( new MappingStep( fieldMapping, relativePath, member.slot, -1, config ) );
+        node.steps = append( node.steps, stepIndex );
+      }
+    }
+
+    root.children = members;
+    freeze( root );
+    return new FieldMappingPlan( config, root, steps.toArray( new MappingStep[ steps.size( ) ] ), members.size( ),
+                                 (patterns.isEmpty( )) ? null : PathAutomaton.compile( patterns ) );
+  }
+
+  boolean isCompiledFrom( RichObjectParserConfig config ) {
+    return this.config == config;
+  }
+
+  /**
+   * @return true if the child documents of a list with nChildren DataObjects should be built in parallel.
+   */
+  boolean isParallel( int nChildren ) {
+    return parallelChildThreshold > 0 && nChildren >= parallelChildThreshold;
+  }
+
+  MappingStep[] getSteps( ) {
+    return steps;
+  }
+
+  /**
+   * @return true if typed properties are added as Java values - see nativeFieldValues.
+   */
+  boolean useNativeValues( ) {
+    return nativeValues;
+  }
+
+  boolean isProjecting( ) {
+    return projection;
+  }
+
+  /**
+   * @return true if a dynamic field is added for the record member name - see dynamicFieldIncludes / Excludes.
+   */
+  boolean isDynamicField( String name ) {
+    if (dynamicIncludes == null && dynamicExcludes == null) return true;
+
+    Boolean dynamic = dynamicNames.get( name );
+    if (dynamic == null) {
+      dynamic = (dynamicIncludes == null || dynamicIncludes.matcher( name ).matches( ))
+             && (dynamicExcludes == null || !dynamicExcludes.matcher( name ).matches( ));
+      if (dynamicNames.size( ) < MAX_CACHED_NAMES) {
+        dynamicNames.put( name, dynamic );
+      }
+    }
+    return dynamic;
+  }
+
+  /**
+   * @return what a parser needs of the record member name: ALL, the member's trie node (materialize the mapped
+   *         paths only) or null if the member can be skipped.
+   */
+  PathNode project( String name ) {
+    if (!projection || isDynamicField( name ) || needsMember( name )) {
+      return ALL;
+    }
+    PathNode member = root.getChild( name );
+    return (member != null && member.isComplete( )) ? ALL : member;
+  }
+
+  /**
+   * @return the known dynamic field suffixes of the record members, null if every member has to be inspected.
+   */
+  DynamicFieldTypes.Suffixes getSuffixes( ) {
+    return suffixes;
+  }
+
+  /**
+   * @return the dynamic field suffixes known so far by member path - record members by name, members of child
+   *         documents as mapping input path/name. Can be used as the dynamicFieldSuffixes of a config.
+   */
+  Map<String, String> exportSuffixes( ) {
+    TreeMap<String, String> schema = new TreeMap<String, String>( );
+    if (suffixes != null) {
+      suffixes.export( "", schema );
+    }
+    for (MappingStep step : steps ) {
+      if (step.suffixes != null) {
+        step.suffixes.export( step.relativePath + "/", schema );
+      }
+    }
+    return schema;
+  }
+
+  /**
+   * Stops learning dynamic field suffixes.
+   */
+  void freezeSuffixes( ) {
+    if (suffixes != null) {
+      suffixes.freeze( );
+    }
+    for (MappingStep step : steps ) {
+      if (step.suffixes != null) {
+        step.suffixes.freeze( );
+      }
+    }
+  }
+
+  PathNode getRoot( ) {
+    return root;
+  }
+
+  /**
+   * @return the slot for a root member name or -1 if the member is not referenced by any mapping.
+   */
+  int getMemberSlot( String name ) {
+    PathNode member = root.getChild( name );
+    return (member != null) ? member.slot : -1;
+  }
+
+  int getMemberCount( ) {
+    return memberCount;
+  }
+
+  IProperty[] newMemberArray( ) {
+    return new IProperty[ memberCount ];
+  }
+
+  /**
+   * @return true if some input path expression can match in the root member name.
+   */
+  boolean needsMember( String name ) {
+    return patterns != null && patterns.needsMember( name );
+  }
+
+  /**
+   * @return a Matches for the root members of a record that are streamed, null if there are no expressions.
+   */
+  PathAutomaton.Matches newMatches( ) {
+    return (patterns != null) ? patterns.newMatches( ) : null;
+  }
+
+  /**
+   * Matches the input path expressions against a streamed root member.
+   */
+  void matchMember( IProperty member, PathAutomaton.Matches matches ) {
+    patterns.matchMember( member, matches );
+  }
+
+  /**
+   * @return the matches of the input path expressions in a record, null if there are no expressions.
+   */
+  PathAutomaton.Matches matchPatterns( DataObject dataObj ) {
+    return (patterns != null) ? patterns.match( dataObj ) : null;
+  }
+
+  /**
+   * Collects the referenced root members of a DataObject into a member array.
+   */
+  IProperty[] collectMembers( DataObject dataObj ) {
+    IProperty[] memberProps = newMemberArray( );
+    for (PathNode member : root.children.values( ) ) {
+      memberProps[ member.slot ] = dataObj.getProperty( member.name );
+    }
+    return memberProps;
+  }
+
+  /**
+   * Resolves the input path of a step, with the same semantics as DataObject.getProperty on the record - or looks up
+   * the matches of an expression.
+   */
+  IProperty resolve( MappingStep step, IProperty[] memberProps, PathAutomaton.Matches matches ) {
+    if (step.pattern >= 0) {
+      return (matches != null) ? matches.get( step.pattern ) : null;
+    }
+
+    IProperty member = memberProps[ step.memberSlot ];
+    if (member == null || step.restPath == null) {
+      return member;
+    }
+
+    if (member instanceof DataObject) {
+      return ((DataObject)member).getProperty( step.restPath );
+    }
+
+    // paths through lists fan out over the list entries - let the DataObject do that
+    DataObject holder = new DataObject( );
+    holder.addProperty( member );
+    return holder.getProperty( step.relativePath );
+  }
+
+  // the explicit suffixes of the member paths directly below prefix
+  private static DynamicFieldTypes.Suffixes suffixes( RichObjectParserConfig config, String prefix ) {
+    HashMap<String, String> explicit = new HashMap<String, String>( );
+    Map<String, String> configured = config.getDynamicFieldSuffixes( );
+    if (configured != null) {
+      for (Map.Entry<String, String> entry : configured.entrySet( ) ) {
+        String path = entry.getKey( );
+        if (path == null || entry.getValue( ) == null) continue;
+        if (path.startsWith( "/" )) {
+          path = path.substring( 1 );
+        }
+        if (path.startsWith( prefix ) && path.indexOf( '/', prefix.length( ) ) < 0 && path.length( ) > prefix.length( )) {
+          explicit.put( path.substring( prefix.length( ) ), entry.getValue( ) );
+        }
+      }
+    }
+    if (explicit.isEmpty( ) && !config.learnDynamicFieldSuffixes( )) return null;
+    return new DynamicFieldTypes.Suffixes( explicit, config.learnDynamicFieldSuffixes( ) );
+  }
+
+  // one regular expression for a list of name patterns with '*' and '?' wildcards, null for no patterns
+  private static Pattern compileNamePatterns( List<String> patterns ) {
+    if (patterns == null || patterns.isEmpty( )) return null;
+
+    StringBuilder regex = new StringBuilder( );
+    for (String pattern : patterns ) {
+      if (pattern == null || pattern.trim( ).isEmpty( )) continue;
+      if (regex.length( ) > 0) regex.append( '|' );
+      regex.append( PathAutomaton.globRegex( pattern.trim( ) ) );
+    }
+    return (regex.length( ) > 0) ? Pattern.compile( regex.toString( ), Pattern.DOTALL ) : null;
+  }
+
+  private static PathNode addChild( PathNode parent, String name ) {
+    if (parent.children.isEmpty( )) {
+      parent.children = new HashMap<String, PathNode>( );
+    }
+    PathNode child = parent.children.get( name );
+    if (child == null) {
+      child = new PathNode( name, -1 );
+      parent.children.put( name, child );
+    }
+    return child;
+  }
+
+  private static void freeze( PathNode node ) {
+    for (PathNode child : node.children.values( ) ) {
+      freeze( child );
+    }
+    node.children = Collections.unmodifiableMap( node.children );
+  }
+
+  private static int[] append( int[] values, int value ) {
+    int[] newValues = new int[ values.length + 1 ];
+    System.arraycopy( values, 0, newValues, 0, values.length );
+    newValues[ values.length ] = value;
+    return newValues;
+  }
+}
@@ -0,0 +1,56 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+/**
+ * Point in time summary of a LogHistogram. Exposed through JMX as composite data.
+ */
+public final class HistogramSnapshot {
+  private final long count;
+  private final long sum;
+  private final long max;
+  private final long p50;
+  private final long p90;
+  private final long p99;
+
+  HistogramSnapshot( long count, long sum, long max, long p50, long p90, long p99 ) {
+    this.count = count;
+    this.sum = sum;
+    this.max = max;
+    this.p50 = p50;
+    this.p90 = p90;
+    this.p99 = p99;
+  }
+
+  public long getCount( ) {
+    return count;
+  }
+
+  public long getSum( ) {
+    return sum;
+  }
+
+  public long getMax( ) {
+    return max;
+  }
+
+  public double getMean( ) {
+    return (count > 0) ? (double)sum / count : 0.0;
+  }
+
+  public long getP50( ) {
+    return p50;
+  }
+
+  public long getP90( ) {
+    return p90;
+  }
+
+  public long getP99( ) {
+    return p99;
+  }
+
+  @Override
+  public String toString( ) {
+    return "count=" + count + " mean=" + String.format( "%.1f", getMean( ) ) + " p50=" + p50 + " p90=" + p90
+         + " p99=" + p99 + " max=" + max;
+  }
+}
@@ -0,0 +1,190 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import java.io.IOException;
+
+/**
+ * Splits a mapped JSON file into records: the elements of a top level array, or the file itself if it holds a
+ * single top level object - or, for JSON Lines / concatenated JSON, every top level value. Element boundaries are
+ * found by scanning bytes for brackets outside of strings (escape aware) - nothing is parsed. Each record is copied
+ * into a buffer that is reused for the next one, so the heap needed is bounded by the largest record, not the file.
+ */
+final class JSONArraySplitter {
+
+  private final MappedFile file;
+  private final boolean concatenated;
+  private final long size;
+  private long pos;
+  private boolean started;
+  private boolean inArray;
+  private boolean done;
+
+  private byte[] record = new byte[ 8192 ];
+
+  JSONArraySplitter( MappedFile file, boolean concatenated ) {
+    this.file = file;
+    this.concatenated = concatenated;
+    this.size = file.size( );
+  }
+
+  /**
+   * @return the next record or null after the last one. The record is only valid until the next call.
+   */
+  RecordInput next( ) throws IOException {
+    if (done) return null;
+
+    if (concatenated) {
+      if (!started) {
+        started = true;
+        skipByteOrderMark( );
+      }
+      if (peek( ) == -1) {
+        done = true;
+        return null;
+      }
+      long start = pos;
+      skipValue( );
+      return copy( start, pos );
+    }
+
+    if (!started) {
+      started = true;
+      skipByteOrderMark( );
+      int c = peek( );
+      if (c == '[') {
+        inArray = true;
+        ++pos;
+      }
+      else if (c != '{') {
+        throw error( "expected a JSON array or object" );
+      }
+    }
+
+    if (inArray) {
+      if (peek( ) == ']' ) {
+        ++pos;
+        return end( );
+      }
+    }
+
+    long start = pos;
+    skipValue( );
+    RecordInput input = copy( start, pos );
+
+    if (inArray) {
+      int c = peek( );
+      if (c == ',') {
+        ++pos;
+      }
+      else if (c == ']') {
+        ++pos;
+        end( );
+      }
+      else {
+        throw error( "expected ',' or ']'" );
+      }
+    }
+    else {
+      end( );
+    }
+    return input;
+  }
+
+  long getPosition( ) {
+    return pos;
+  }
+
+  private RecordInput end( ) throws IOException {
+    done = true;
+    if (peek( ) != -1) {
+      throw error( "unexpected content after top level value" );
+    }
+    return null;
+  }
+
+  private RecordInput copy( long start, long stop ) throws IOException {
+    long length = stop - start;
+    if (length > Integer.MAX_VALUE - 8) {
+      throw error( "record of " + length + " bytes is too large" );
+    }
+    if (record.length < length) {
+      record = new byte[ (int)Math.min( Integer.MAX_VALUE - 8, Math.max( length, 2L * record.length ) ) ];
+    }
+    file.read( start, record, 0, (int)length );
+    return RecordInput.wrap( record, 0, (int)length );
+  }
+
+  private void skipValue( ) throws IOException {
+    int c = peek( );
+    if (c == '{' || c == '[') {
+      int depth = 0;
+      while (pos < size) {
+        int ch = file.get( pos );
+        if (ch == '"') {
+          skipString( );
+          continue;
+        }
+        ++pos;
+        if (ch == '{' || ch == '[') {
+          ++depth;
+        }
+        else if (ch == '}' || ch == ']') {
+          if (--depth == 0) return;
+        }
+      }
+      throw error( "unterminated " + ((c == '{') ? "object" : "array") );
+    }
+    else if (c == '"') {
+      skipString( );
+    }
+    else {
+      long start = pos;
+      while (pos < size) {
+        int ch = file.get( pos );
+        if (ch == ',' || ch == ']' || ch == '}' || isWhitespace( ch )) break;
+        ++pos;
+      }
+      if (pos == start) {
+        throw error( "expected value" );
+      }
+    }
+  }
+
+  private void skipString( ) throws IOException {
+    ++pos; // opening quote
+    while (pos < size) {
+      int ch = file.get( pos );
+      if (ch == '\\') {
+        pos += 2;
+      }
+      else {
+        ++pos;
+        if (ch == '"') return;
+      }
+    }
+    throw error( "unterminated string" );
+  }
+
+  // next non-whitespace byte without consuming it, -1 at end of file
+  private int peek( ) throws IOException {
+    while (pos < size) {
+      int ch = file.get( pos );
+      if (!isWhitespace( ch )) return ch;
+      ++pos;
+    }
+    return -1;
+  }
+
+  private void skipByteOrderMark( ) throws IOException {
+    if (size >= 3 && file.get( 0 ) == 0xEF && file.get( 1 ) == 0xBB && file.get( 2 ) == 0xBF) {
+      pos = 3;
+    }
+  }
+
+  private static boolean isWhitespace( int ch ) {
+    return ch == ' ' || ch == '\n' || ch == '\r' || ch == '\t';
+  }
+
+  private IOException error( String message ) {
+    return new IOException( "Malformed JSON in " + file.getPath( ) + " at byte " + pos + ": " + message );
+  }
+}
@@ -0,0 +1,34 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import com.modinfodesigns.property.transform.PropertyTransformException;
+
+import java.util.Arrays;
+
+/**
+ * Finds the records of a JSON Lines or concatenated JSON input: every top level value is a record, whatever
+ * whitespace (or none) is between them. Values are skipped with JSONTokenizer, which only looks for brackets and
+ * quotes outside of strings - nothing is parsed or materialized.
+ */
+final class JSONRecordScanner {
+
+  private JSONRecordScanner( ) { }
+
+  /**
+   * @return the start and end offsets of the records, two entries per record.
+   */
+  static int[] scan( RecordInput input ) throws PropertyTransformException {
+    JSONTokenizer tokenizer = new JSONTokenizer( );
+    tokenizer.reset( input );
+    int[] bounds = new int[ 64 ];
+    int n = 0;
+    while (!tokenizer.atEnd( )) {
+      if (n + 2 > bounds.length) {
+        bounds = Arrays.copyOf( bounds, bounds.length * 2 );
+      }
+      bounds[n++] = tokenizer.position( );
+      tokenizer.skipValue( );
+      bounds[n++] = tokenizer.position( );
+    }
+    return Arrays.copyOf( bounds, n );
+  }
+}
@@ -0,0 +1,169 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import com.modinfodesigns.property.IProperty;
+import com.modinfodesigns.property.DataObject;
+import com.modinfodesigns.property.PropertyList;
+import com.modinfodesigns.property.BooleanProperty;
+import com.modinfodesigns.property.string.StringProperty;
+import com.modinfodesigns.property.transform.PropertyTransformException;
+
+/**
+ * Single pass JSON parse engine for the RichObjectParserStage. Streams the members of the root JSON object to
+ * a MemberListener as they are read - scalar members are passed as raw strings without creating any IProperty,
+ * nested objects and arrays are materialized (only) for the member they belong to.
+ *
+ * Materialized properties follow JSONParserTransform: objects become DataObjects, arrays become PropertyLists
+ * whose entries carry the array name, "true" / "false" become BooleanProperty and everything else becomes a
+ * StringProperty with the raw value text. String values are trimmed as JSONParserTransform trims them.
+ *
+ * Empty (or whitespace only) strings differ: they are passed on as "" - a dynamic field name_s = "" - where
+ * JSONParserTransform drops the member and takes the next member's name wrong ({"a":"","n":12} gives a member
+ * named 'n"').
+ *
+ * A member name that is repeated in the root object is passed to the listener once per occurrence - the listener
+ * merges the occurrences (RichObjectParserStage merges them as the root DataObject of JSONParserTransform does).
+ * Repeated members of nested objects are merged by the DataObject they are added to.
+ *
+ * Members (and, below them, object members) that the listener's projection leaves out are skipped at the token
+ * level - nothing is created for them.
+ *
+ * A mapper can be reused for any number of documents but only by one thread at a time.
+ */
+final class JSONStreamMapper {
+
+  interface MemberListener {
+
+    /**
+     * Called before the value of a root member is read.
+     *
+     * @return FieldMappingPlan.ALL to materialize the whole value, a trie node to materialize the paths below it
+     *         only or null to skip the member.
+     */
+    FieldMappingPlan.PathNode project( String name );
+
+    /**
+     * Called for a string, number, boolean or null member of the root object. Boolean values are
+     * normalized to "true" or "false".
+     */
+    void scalar( String name, String value, boolean isBoolean );
+
+    /**
+     * Called for an object or array member of the root object.
+     */
+    void property( IProperty prop );
+  }
+
+  private final JSONTokenizer tokenizer = new JSONTokenizer( );
+
+  /**
+   * Streams the members of the root object of json to the listener.
+   *
+   * @return false if json is not a JSON object - nothing has been sent to the listener in that case.
+   */
+  boolean map( String json, MemberListener listener ) throws PropertyTransformException {
+    tokenizer.reset( json );
+    return mapRoot( listener );
+  }
+
+  /**
+   * Streams the members of the root object of a String or UTF-8 byte record to the listener.
+   *
+   * @return false if the record is not a JSON object - nothing has been sent to the listener in that case.
+   */
+  boolean map( RecordInput input, MemberListener listener ) throws PropertyTransformException {
+    tokenizer.reset( input );
+    return mapRoot( listener );
+  }
+
+  private boolean mapRoot( MemberListener listener ) throws PropertyTransformException {
+    try {
+      if (tokenizer.peek( ) != '{') {
+        return false;
+      }
+
+      tokenizer.expect( '{' );
+      if (!tokenizer.nextIf( '}' )) {
+        do {
+          String name = tokenizer.readName( );
+          FieldMappingPlan.PathNode projection = listener.project( name );
+          if (projection == null) {
+            tokenizer.skipValue( );
+            continue;
+          }
+          char c = tokenizer.peek( );
+          if (c == '{' || c == '[') {
+            listener.property( createProperty( name, projection ) );
+          }
+          else {
+            tokenizer.readScalar( );
+            boolean isBoolean = tokenizer.isBooleanText( );
+            String value = tokenizer.text( );
+            listener.scalar( name, (isBoolean) ? value.toLowerCase( ) : value, isBoolean );
+          }
+        } while (tokenizer.nextIf( ',' ));
+        tokenizer.expect( '}' );
+      }
+
+      if (!tokenizer.atEnd( )) {
+        throw new PropertyTransformException( "Unexpected content after JSON object" );
+      }
+      return true;
+    }
+    finally {
+      tokenizer.release( );
+    }
+  }
+
+  /**
+   * Creates the IProperty that JSONParserTransform would create for a scalar value.
+   */
+  static IProperty createScalarProperty( String name, String value, boolean isBoolean ) {
+    return (isBoolean) ? new BooleanProperty( name, value ) : new StringProperty( name, value );
+  }
+
+  private IProperty createProperty( String name, FieldMappingPlan.PathNode projection ) throws PropertyTransformException {
+    char c = tokenizer.peek( );
+    if (c == '{') {
+      return createDataObject( name, projection );
+    }
+    else if (c == '[') {
+      return createPropertyList( name, projection );
+    }
+
+    tokenizer.readScalar( );
+    return createScalarProperty( name, tokenizer.text( ), tokenizer.isBooleanText( ) );
+  }
+
+  private DataObject createDataObject( String name, FieldMappingPlan.PathNode projection ) throws PropertyTransformException {
+    DataObject dobj = new DataObject( );
+    dobj.setName( name );
+    tokenizer.expect( '{' );
+    if (!tokenizer.nextIf( '}' )) {
+      do {
+        String childName = tokenizer.readName( );
+        FieldMappingPlan.PathNode child = (projection.isComplete( )) ? projection : projection.getChild( childName );
+        if (child == null) {
+          tokenizer.skipValue( );
+          continue;
+        }
+        dobj.addProperty( createProperty( childName, child ) );
+      } while (tokenizer.nextIf( ',' ));
+      tokenizer.expect( '}' );
+    }
+    return dobj;
+  }
+
+  // the entries of an array are projected like the array - paths through lists apply to every entry
+  private PropertyList createPropertyList( String name, FieldMappingPlan.PathNode projection ) throws PropertyTransformException {
+    PropertyList pList = new PropertyList( );
+    pList.setName( name );
+    tokenizer.expect( '[' );
+    if (!tokenizer.nextIf( ']' )) {
+      do {
+        pList.addProperty( createProperty( name, projection ) );
+      } while (tokenizer.nextIf( ',' ));
+      tokenizer.expect( ']' );
+    }
+    return pList;
+  }
+}
@@ -0,0 +1,234 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import com.modinfodesigns.property.transform.PropertyTransformException;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal pull tokenizer over a JSON string or UTF-8 bytes. Reads structural characters, strings and literals in
+ * place - string and literal text is only materialized (and for bytes decoded) when text( ) is called. All JSON
+ * syntax is ASCII, so UTF-8 bytes are scanned as they are; multi byte sequences only occur inside values.
+ *
+ * String values are returned raw (escape sequences are not decoded) and trimmed as String.trim( ) trims to match
+ * the behavior of the Modular Informatic Designs JSONParserTransform. Member names are not trimmed.
+ */
+final class JSONTokenizer {
+
+  // one of data and bytes is set
+  private String data;
+  private byte[] bytes;
+  private int base;
+  private int pos;
+  private int end;
+
+  // bounds of the last string or literal read
+  private int start;
+  private int stop;
+
+  void reset( String data ) {
+    this.data = data;
+    this.bytes = null;
+    this.base = 0;
+    this.pos = 0;
+    this.end = data.length( );
+    this.start = 0;
+    this.stop = 0;
+  }
+
+  void reset( RecordInput input ) {
+    if (input.isText( )) {
+      reset( input.toString( ) );
+    }
+    else {
+      reset( input.getBytes( ), input.getOffset( ), input.length( ) );
+    }
+  }
+
+  void reset( byte[] bytes, int offset, int length ) {
+    this.data = null;
+    this.bytes = bytes;
+    this.base = offset;
+    this.pos = offset;
+    this.end = offset + length;
+    this.start = offset;
+    this.stop = offset;
+  }
+
+  /**
+   * Drops the reference to the input so that a reused tokenizer does not hold on to the last document.
+   */
+  void release( ) {
+    this.data = null;
+    this.bytes = null;
+    this.base = 0;
+    this.pos = 0;
+    this.end = 0;
+  }
+
+  /**
+   * Returns the next non-whitespace character without consuming it, or 0 at end of input.
+   */
+  char peek( ) {
+    skipWhitespace( );
+    return (pos < end) ? charAt( pos ) : 0;
+  }
+
+  boolean atEnd( ) {
+    skipWhitespace( );
+    return pos >= end;
+  }
+
+  /**
+   * Consumes the next non-whitespace character if it is c.
+   */
+  boolean nextIf( char c ) {
+    skipWhitespace( );
+    if (pos < end && charAt( pos ) == c) {
+      ++pos;
+      return true;
+    }
+    return false;
+  }
+
+  void expect( char c ) throws PropertyTransformException {
+    if (!nextIf( c )) {
+      throw error( "expected '" + c + "'" );
+    }
+  }
+
+  /**
+   * Reads an object member name and the following ':' separator.
+   */
+  String readName( ) throws PropertyTransformException {
+    if (peek( ) != '"') {
+      throw error( "expected member name" );
+    }
+    readString( );
+    String name = text( );
+    expect( ':' );
+    return name;
+  }
+
+  /**
+   * Reads a string or literal (number, true, false, null) value.
+   */
+  void readScalar( ) throws PropertyTransformException {
+    if (peek( ) == '"') {
+      readString( );
+      // UTF-8 multi byte sequences never contain bytes <= ' '
+      while (start < stop && charAt( start ) <= ' ') ++start;
+      while (stop > start && charAt( stop - 1 ) <= ' ') --stop;
+    }
+    else {
+      readLiteral( );
+    }
+  }
+
+  /**
+   * Skips the next value, including nested objects and arrays, without materializing anything.
+   */
+  void skipValue( ) throws PropertyTransformException {
+    char c = peek( );
+    if (c == '{' || c == '[') {
+      int depth = 0;
+      while (pos < end) {
+        char ch = charAt( pos );
+        if (ch == '"') {
+          readString( );
+          continue;
+        }
+        ++pos;
+        if (ch == '{' || ch == '[') {
+          ++depth;
+        }
+        else if (ch == '}' || ch == ']') {
+          if (--depth == 0) return;
+        }
+      }
+      throw error( "unterminated " + ((c == '{') ? "object" : "array") );
+    }
+    readScalar( );
+  }
+
+  /**
+   * @return the position of the next character relative to the start of the input.
+   */
+  int position( ) {
+    return pos - base;
+  }
+
+  String text( ) {
+    return (bytes != null) ? new String( bytes, start, stop - start, StandardCharsets.UTF_8 ) : data.substring( start, stop );
+  }
+
+  int textLength( ) {
+    return stop - start;
+  }
+
+  /**
+   * True if the last string or literal read was 'true' or 'false' (case insensitive).
+   */
+  boolean isBooleanText( ) {
+    int len = stop - start;
+    return (len == 4 && textMatches( "true" )) || (len == 5 && textMatches( "false" ));
+  }
+
+  // case insensitive compare of the last text read with an ASCII literal of the same length
+  private boolean textMatches( String literal ) {
+    for (int i = 0; i < literal.length( ); i++) {
+      if (Character.toLowerCase( charAt( start + i ) ) != literal.charAt( i )) return false;
+    }
+    return true;
+  }
+
+  // bytes >= 0x80 map to chars that are never JSON syntax
+  private char charAt( int i ) {
+    return (bytes != null) ? (char)(bytes[i] & 0xFF) : data.charAt( i );
+  }
+
+  private void readString( ) throws PropertyTransformException {
+    ++pos; // opening quote
+    start = pos;
+    while (pos < end) {
+      char ch = charAt( pos );
+      if (ch == '\\') {
+        pos += 2;
+      }
+      else if (ch == '"') {
+        stop = pos++;
+        return;
+      }
+      else {
+        ++pos;
+      }
+    }
+    throw error( "unterminated string" );
+  }
+
+  private void readLiteral( ) throws PropertyTransformException {
+    start = pos;
+    while (pos < end) {
+      char ch = charAt( pos );
+      if (ch == ',' || ch == '}' || ch == ']' || ch == ':' || isWhitespace( ch )) break;
+      ++pos;
+    }
+    stop = pos;
+    if (stop == start) {
+      throw error( "expected value" );
+    }
+  }
+
+  private void skipWhitespace( ) {
+    while (pos < end && isWhitespace( charAt( pos ) )) {
+      ++pos;
+    }
+  }
+
+  private static boolean isWhitespace( char ch ) {
+    return ch == ' ' || ch == '\n' || ch == '\r' || ch == '\t';
+  }
+
+  private PropertyTransformException error( String message ) {
+    return new PropertyTransformException( "Malformed JSON at position " + (pos - base) + ": " + message );
+  }
+}
@@ -0,0 +1,75 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Lock free histogram of non negative long values with power of two buckets - bucket b counts values in
+ * [2^(b-1), 2^b). Recording is a few LongAdder increments, so threads recording concurrently do not contend.
+ * Percentiles are estimated as the upper bound of the bucket they fall in (at most 2x off, capped at the max).
+ */
+public final class LogHistogram {
+  private static final int BUCKETS = 65;
+
+  private final LongAdder[] buckets = new LongAdder[ BUCKETS ];
+  private final LongAdder sum = new LongAdder( );
+  private final LongAccumulator max = new LongAccumulator( new LongBinaryOperator( ) {
+    @Override
+    public long applyAsLong( long left, long right ) {
+      return Math.max( left, right );
+    }
+  }, 0L );
+
+  public LogHistogram( ) {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets[i] = new LongAdder( );
+    }
+  }
+
+  public void record( long value ) {
+    if (value < 0) value = 0;
+    buckets[ 64 - Long.numberOfLeadingZeros( value ) ].increment( );
+    sum.add( value );
+    max.accumulate( value );
+  }
+
+  public void reset( ) {
+    for (LongAdder bucket : buckets ) {
+      bucket.reset( );
+    }
+    sum.reset( );
+    max.reset( );
+  }
+
+  /**
+   * Consistent enough for monitoring - values recorded while the snapshot is taken may be partly included.
+   */
+  public HistogramSnapshot snapshot( ) {
+    long[] counts = new long[ BUCKETS ];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = buckets[i].sum( );
+      total += counts[i];
+    }
+    long maxValue = max.get( );
+    return new HistogramSnapshot( total, sum.sum( ), maxValue,
+                                  percentile( counts, total, maxValue, 0.5 ),
+                                  percentile( counts, total, maxValue, 0.9 ),
+                                  percentile( counts, total, maxValue, 0.99 ) );
+  }
+
+  private static long percentile( long[] counts, long total, long maxValue, double quantile ) {
+    if (total == 0) return 0;
+    long rank = (long)Math.ceil( quantile * total );
+    long seen = 0;
+    for (int b = 0; b < BUCKETS; b++) {
+      seen += counts[b];
+      if (seen >= rank) {
+        long upper = (b == 0) ? 0 : ((b >= 63) ? Long.MAX_VALUE : (1L << b) - 1);
+        return Math.min( upper, maxValue );
+      }
+    }
+    return maxValue;
+  }
+}
@@ -0,0 +1,130 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read only view of a local file that is memory mapped one fixed size window at a time, so files of any size can
+ * be read with a bounded heap (and bounded address space). Windows are aligned to the window size; a window is
+ * unmapped by the GC once the next one replaces it.
+ *
+ * Not thread safe.
+ */
+final class MappedFile implements Closeable {
+
+  static final int DEFAULT_WINDOW_BYTES = 64 * 1024 * 1024;
+
+  private final String path;
+  private final FileChannel channel;
+  private final long size;
+  private final int windowBytes;
+
+  private MappedByteBuffer window;
+  private long windowStart;
+  private int windowLength;
+
+  MappedFile( String path ) throws IOException {
+    this( path, DEFAULT_WINDOW_BYTES );
+  }
+
+  MappedFile( String path, int windowBytes ) throws IOException {
+    this.path = path;
+    this.channel = FileChannel.open( Paths.get( path ), StandardOpenOption.READ );
+    this.size = channel.size( );
+    this.windowBytes = windowBytes;
+  }
+
+  String getPath( ) {
+    return path;
+  }
+
+  long size( ) {
+    return size;
+  }
+
+  /**
+   * @return the byte at pos (0 - 255). pos must be less than size( ).
+   */
+  int get( long pos ) throws IOException {
+    if (pos < windowStart || pos >= windowStart + windowLength) {
+      map( pos );
+    }
+    return window.get( (int)(pos - windowStart) ) & 0xFF;
+  }
+
+  /**
+   * Copies len bytes starting at pos to dst - across windows if necessary.
+   */
+  void read( long pos, byte[] dst, int off, int len ) throws IOException {
+    while (len > 0) {
+      if (pos < windowStart || pos >= windowStart + windowLength) {
+        map( pos );
+      }
+      int inWindow = (int)(pos - windowStart);
+      int n = Math.min( len, windowLength - inWindow );
+      ByteBuffer view = window.duplicate( );
+      view.position( inWindow );
+      view.get( dst, off, n );
+      pos += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * @return a stream over the file from its start, read through the mapped windows.
+   */
+  InputStream openStream( ) {
+    return new WindowStream( );
+  }
+
+  @Override
+  public void close( ) throws IOException {
+    window = null;
+    windowLength = 0;
+    channel.close( );
+  }
+
+  private void map( long pos ) throws IOException {
+    if (pos < 0 || pos >= size) {
+      throw new IOException( path + ": read at " + pos + " beyond end of file (" + size + ")" );
+    }
+    long start = (pos / windowBytes) * windowBytes;
+    int length = (int)Math.min( windowBytes, size - start );
+    // LOG.debug( "mapping " + path + " [" + start + ", " + (start + length) + ")" );
+    window = channel.map( FileChannel.MapMode.READ_ONLY, start, length );
+    windowStart = start;
+    windowLength = length;
+  }
+
+  private final class WindowStream extends InputStream {
+    private long pos;
+
+    @Override
+    public int read( ) throws IOException {
+      return (pos < size) ? get( pos++ ) : -1;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException {
+      if (len == 0) return 0;
+      if (pos >= size) return -1;
+      int n = (int)Math.min( len, size - pos );
+      MappedFile.this.read( pos, b, off, n );
+      pos += n;
+      return n;
+    }
+
+    @Override
+    public int available( ) {
+      return (int)Math.min( Integer.MAX_VALUE, size - pos );
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import com.lucidworks.apollo.common.pipeline.PipelineDocument;
+import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig.Format;
+
+import com.modinfodesigns.property.IDataObjectBuilder;
+import com.modinfodesigns.property.IProperty;
+import com.modinfodesigns.property.transform.json.JSONParserTransform;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+
+/**
+ * Thread confined parser scaffolding for the RichObjectParserStage: one IDataObjectBuilder per Format, the
+ * JSONStreamMapper, the member slot array of the streaming path, the output buffer of processBatch and the scratch
+ * buffer that InputStream and direct ByteBuffer records are read into. Everything is created on first use by a thread
+ * and reused for every following document, so a steady state stage thread does not allocate parsers.
+ */
+final class ParserPool {
+
+  private static final ThreadLocal<ParserPool> POOL = new ThreadLocal<ParserPool>( ) {
+    @Override
+    protected ParserPool initialValue( ) {
+      return new ParserPool( );
+    }
+  };
+
+  // slot arrays that grew past this are trimmed back when a smaller plan is used again
+  private static final int MAX_IDLE_SLOTS = 64;
+
+  // output buffers that held more documents than this are not reused
+  private static final int MAX_IDLE_DOCS = 4096;
+
+  // larger scratch buffers are left to the GC once the record is done
+  private static final int MAX_IDLE_BYTES = 16 * 1024 * 1024;
+
+  private final EnumMap<Format, IDataObjectBuilder> builders = new EnumMap<Format, IDataObjectBuilder>( Format.class );
+  private final JSONStreamMapper streamMapper = new JSONStreamMapper( );
+  private IProperty[] memberProps = new IProperty[ 16 ];
+  private ArrayList<PipelineDocument> outputBuffer;
+  private byte[] scratchBytes;
+
+  private ParserPool( ) { }
+
+  /**
+   * @return the parsers of the calling thread
+   */
+  static ParserPool get( ) {
+    return POOL.get( );
+  }
+
+  IDataObjectBuilder getBuilder( Format format ) throws Exception {
+    IDataObjectBuilder builder = builders.get( format );
+    if (builder == null) {
+      builder = createBuilder( format );
+      builders.put( format, builder );
+    }
+    return builder;
+  }
+
+  JSONStreamMapper getStreamMapper( ) {
+    return streamMapper;
+  }
+
+  /**
+   * Returns a cleared member slot array with room for at least size slots. The array is grown to the largest plan
+   * seen and shrunk again when it is much larger than the plans in use. Call releaseMemberArray when done.
+   */
+  IProperty[] getMemberArray( int size ) {
+    if (memberProps.length < size || (memberProps.length > MAX_IDLE_SLOTS && memberProps.length > 4 * size)) {
+      memberProps = new IProperty[ Math.max( size, 16 ) ];
+    }
+    return memberProps;
+  }
+
+  /**
+   * Drops the references to the member properties of the last document.
+   */
+  void releaseMemberArray( int size ) {
+    Arrays.fill( memberProps, 0, Math.min( size, memberProps.length ), null );
+  }
+
+  /**
+   * Returns the thread's output buffer, or a new one if it is in use - a collector may call back into the stage
+   * while a batch is written. Hand it back with returnOutputBuffer.
+   */
+  ArrayList<PipelineDocument> borrowOutputBuffer( ) {
+    ArrayList<PipelineDocument> buffer = outputBuffer;
+    outputBuffer = null;
+    return (buffer != null) ? buffer : new ArrayList<PipelineDocument>( );
+  }
+
+  void returnOutputBuffer( ArrayList<PipelineDocument> buffer ) {
+    if (buffer.size( ) > MAX_IDLE_DOCS) {
+      // don't keep the capacity of an unusually large batch
+      buffer = new ArrayList<PipelineDocument>( );
+    }
+    else {
+      buffer.clear( );
+    }
+    outputBuffer = buffer;
+  }
+
+  /**
+   * Returns the thread's scratch byte buffer if it is free and holds at least size bytes, a new one otherwise.
+   * Hand it back with returnBytes.
+   */
+  byte[] borrowBytes( int size ) {
+    byte[] bytes = scratchBytes;
+    scratchBytes = null;
+    return (bytes != null && bytes.length >= size) ? bytes : new byte[ size ];
+  }
+
+  void returnBytes( byte[] bytes ) {
+    if (bytes.length <= MAX_IDLE_BYTES && (scratchBytes == null || scratchBytes.length < bytes.length)) {
+      scratchBytes = bytes;
+    }
+  }
+
+  private static IDataObjectBuilder createBuilder( Format format ) throws Exception {
+    switch (format) {
+      case json:
+      case jsonl:
+        return new JSONParserTransform( );
+      case xml:
+        return new XMLRecordBuilder( );
+    }
+    throw new Exception( "No parser for '" + format + "'" );
+  }
+}
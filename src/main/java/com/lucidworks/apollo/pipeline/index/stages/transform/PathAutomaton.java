@@ -0,0 +1,544 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import com.modinfodesigns.property.IProperty;
+import com.modinfodesigns.property.DataObject;
+import com.modinfodesigns.property.PropertyList;
+import com.modinfodesigns.property.IntrinsicPropertyDelegate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Matches a set of path expressions against the properties of a record in one traversal. Compiled once per
+ * config and shared by all threads - the state of a traversal is held by the caller's Matches.
+ *
+ * A path is a '/' separated list of steps. A step is a member name - with '*' and '?' wildcards - or '**' for any
+ * number of levels (including none), followed by any number of selectors on the entries of a list (a single value
+ * is a list of one):
+ *
+ *   [2]  [-1]        the entry at an index, negative indexes count from the end
+ *   [1:3]  [:2]      a range of entries, the end is exclusive
+ *   [*]              all entries
+ *   [type=book]      the entries that have a member with the value - also [type!=book] and quoted values
+ *
+ * e.g. /items[type='book']/title, /**&#47;price, /attributes[name=color]/value or /tags[0:3].
+ *
+ * The paths are compiled into a nondeterministic automaton with one state per step. The traversal carries the set
+ * of active states down the record - a member is only visited while some state is active, so the cost of matching
+ * depends on the parts of the record the paths can reach, not on the number of paths.
+ */
+final class PathAutomaton {
+
+  private static final int[] NO_STATES = new int[0];
+
+  /**
+   * One step of a path expression.
+   */
+  private static final class Step {
+    final boolean recursive;   // '**'
+    final String name;         // literal name, null for a wildcard name or '**'
+    final Pattern namePattern;
+    final Selector[] selectors;
+
+    Step( boolean recursive, String name, Pattern namePattern, Selector[] selectors ) {
+      this.recursive = recursive;
+      this.name = name;
+      this.namePattern = namePattern;
+      this.selectors = selectors;
+    }
+
+    boolean matchesName( String memberName ) {
+      if (recursive) return true;
+      if (memberName == null) return false;
+      return (name != null) ? name.equals( memberName ) : namePattern.matcher( memberName ).matches( );
+    }
+
+    /**
+     * @return the entries of a list (or single value) that the selectors select - each selector applies to the
+     *         entries that the previous ones selected, so [type=book][0] is the first book.
+     */
+    boolean[] select( IProperty prop, int size ) {
+      boolean[] selected = new boolean[ size ];
+      Arrays.fill( selected, true );
+      for (Selector selector : selectors ) {
+        int nSelected = 0;
+        for (boolean isSelected : selected ) {
+          if (isSelected) ++nSelected;
+        }
+        for (int i = 0, index = 0; i < size; i++) {
+          if (selected[i]) {
+            selected[i] = selector.selects( index++, nSelected, entry( prop, i ) );
+          }
+        }
+      }
+      return selected;
+    }
+  }
+
+  /**
+   * An index, range or member value selector.
+   */
+  private static final class Selector {
+    final int from;
+    final int to;
+    final boolean toEnd;
+    final String member;   // null for an index or range
+    final String value;
+    final boolean negate;
+
+    // index or range
+    Selector( int from, int to, boolean toEnd ) {
+      this.from = from;
+      this.to = to;
+      this.toEnd = toEnd;
+      this.member = null;
+      this.value = null;
+      this.negate = false;
+    }
+
+    // member value
+    Selector( String member, String value, boolean negate ) {
+      this.from = 0;
+      this.to = 0;
+      this.toEnd = true;
+      this.member = member;
+      this.value = value;
+      this.negate = negate;
+    }
+
+    boolean selects( int index, int size, IProperty entry ) {
+      if (member == null) {
+        int start = (from < 0) ? size + from : from;
+        int end = (toEnd) ? size : ((to < 0) ? size + to : to);
+        return index >= start && index < end;
+      }
+      return hasValue( entry ) != negate;
+    }
+
+    private boolean hasValue( IProperty entry ) {
+      if (!(entry instanceof DataObject)) return false;
+      IProperty prop = ((DataObject)entry).getProperty( member );
+      if (prop instanceof PropertyList) {
+        Iterator<IProperty> values = ((PropertyList)prop).getProperties( );
+        while (values != null && values.hasNext( )) {
+          if (value.equals( values.next( ).getValue( ) )) return true;
+        }
+        return false;
+      }
+      return prop != null && value.equals( prop.getValue( ) );
+    }
+  }
+
+  /**
+   * The properties matched by each path in one traversal, in document order.
+   */
+  static final class Matches {
+    private final List<IProperty>[] matches;
+
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    private Matches( int nPaths ) {
+      this.matches = new List[ nPaths ];
+    }
+
+    private void add( int path, IProperty prop ) {
+      List<IProperty> props = matches[ path ];
+      if (props == null) {
+        props = new ArrayList<IProperty>( 2 );
+        matches[ path ] = props;
+      }
+      // a property reached through more than one state is matched once
+      else if (props.get( props.size( ) - 1 ) == prop) {
+        return;
+      }
+      props.add( prop );
+    }
+
+    /**
+     * @return the property matched by a path, a PropertyList of the (list entries of the) properties if there is
+     *         more than one or null if nothing matched.
+     */
+    IProperty get( int path ) {
+      List<IProperty> props = matches[ path ];
+      if (props == null) return null;
+      if (props.size( ) == 1) return props.get( 0 );
+
+      PropertyList pList = new PropertyList( );
+      pList.setName( props.get( 0 ).getName( ) );
+      for (IProperty prop : props ) {
+        if (prop instanceof PropertyList) {
+          Iterator<IProperty> entries = ((PropertyList)prop).getProperties( );
+          while (entries != null && entries.hasNext( )) {
+            pList.addProperty( entries.next( ) );
+          }
+        }
+        else {
+          pList.addProperty( prop );
+        }
+      }
+      return pList;
+    }
+  }
+
+  private final int nPaths;
+  private final Step[] steps;        // by state, null for accepting states
+  private final int[] pathOf;        // the path of a state
+  private final int[][] closure;     // the states a state stands for: itself and, after '**', the following ones
+  private final int[] start;
+
+  private PathAutomaton( int nPaths, Step[] steps, int[] pathOf, int[][] closure, int[] start ) {
+    this.nPaths = nPaths;
+    this.steps = steps;
+    this.pathOf = pathOf;
+    this.closure = closure;
+    this.start = start;
+  }
+
+  /**
+   * @return true if path is an expression - a literal path is resolved with DataObject.getProperty.
+   */
+  static boolean isExpression( String path ) {
+    return path != null && (path.indexOf( '*' ) >= 0 || path.indexOf( '?' ) >= 0 || path.indexOf( '[' ) >= 0);
+  }
+
+  /**
+   * Compiles the paths - a path is identified by its index in the Matches.
+   *
+   * @throws IllegalArgumentException for a path that is not a valid expression
+   */
+  static PathAutomaton compile( List<String> paths ) {
+    ArrayList<Step> steps = new ArrayList<Step>( );
+    ArrayList<Integer> pathOf = new ArrayList<Integer>( );
+    int[] starts = new int[ paths.size( ) ];
+    for (int p = 0; p < paths.size( ); p++) {
+      starts[p] = steps.size( );
+      for (Step step : parse( paths.get( p ) ) ) {
+        steps.add( step );
+        pathOf.add( p );
+      }
+      // accepting state
+      steps.add( null );
+      pathOf.add( p );
+    }
+
+    int nStates = steps.size( );
+    Step[] stepArray = steps.toArray( new Step[ nStates ] );
+    int[] pathArray = new int[ nStates ];
+    int[][] closure = new int[ nStates ][];
+    for (int s = nStates - 1; s >= 0; s--) {
+      pathArray[s] = pathOf.get( s );
+      closure[s] = (stepArray[s] != null && stepArray[s].recursive) ? union( new int[] { s }, closure[s + 1] ) : new int[] { s };
+    }
+
+    int[] start = NO_STATES;
+    for (int s : starts ) {
+      start = union( start, closure[s] );
+    }
+    return new PathAutomaton( paths.size( ), stepArray, pathArray, closure, start );
+  }
+
+  /**
+   * @throws IllegalArgumentException if path is not a valid expression
+   */
+  static void validate( String path ) {
+    parse( path );
+  }
+
+  Matches newMatches( ) {
+    return new Matches( nPaths );
+  }
+
+  /**
+   * @return true if some path can match below a root member with this name - the member must be parsed.
+   */
+  boolean needsMember( String name ) {
+    for (int s : start ) {
+      if (steps[s] != null && steps[s].matchesName( name )) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Matches the paths against the members of a record.
+   */
+  Matches match( DataObject record ) {
+    Matches matches = newMatches( );
+    descend( record, start, matches );
+    return matches;
+  }
+
+  /**
+   * Matches the paths against one root member of a record - for members that are streamed one at a time.
+   */
+  void matchMember( IProperty member, Matches matches ) {
+    consume( member, start, matches );
+  }
+
+  // moves the states over a property - matches it and descends into it with the states that are left
+  private void consume( IProperty prop, int[] states, Matches matches ) {
+    String name = prop.getName( );
+    int[] next = NO_STATES;
+    int[] selective = NO_STATES;
+    for (int s : states ) {
+      Step step = steps[s];
+      if (step == null || !step.matchesName( name )) continue;
+      if (step.selectors != null) {
+        selective = union( selective, new int[] { s } );
+        continue;
+      }
+      // '**' stays active for the levels below
+      next = advance( (step.recursive) ? closure[s] : closure[s + 1], prop, next, matches );
+    }
+
+    if (selective.length == 0) {
+      descend( prop, next, matches );
+      return;
+    }
+
+    int size = (prop instanceof PropertyList) ? ((PropertyList)prop).size( ) : 1;
+    boolean[][] selected = new boolean[ selective.length ][];
+    for (int k = 0; k < selective.length; k++) {
+      selected[k] = steps[ selective[k] ].select( prop, size );
+    }
+    for (int i = 0; i < size; i++) {
+      IProperty entry = entry( prop, i );
+      int[] entryStates = next;
+      for (int k = 0; k < selective.length; k++) {
+        if (selected[k][i]) {
+          entryStates = advance( closure[ selective[k] + 1 ], entry, entryStates, matches );
+        }
+      }
+      descend( entry, entryStates, matches );
+    }
+  }
+
+  // entry i of a list - a single value is a list of one
+  private static IProperty entry( IProperty prop, int i ) {
+    return (prop instanceof PropertyList) ? ((PropertyList)prop).getProperty( i ) : prop;
+  }
+
+  // records prop for the accepting targets, adds the others to states
+  private int[] advance( int[] targets, IProperty prop, int[] states, Matches matches ) {
+    for (int t : targets ) {
+      if (steps[t] == null) {
+        matches.add( pathOf[t], prop );
+      }
+      else {
+        states = union( states, new int[] { t } );
+      }
+    }
+    return states;
+  }
+
+  // the members of an object, the entries of a list - list entries are the values of the same member
+  private void descend( IProperty value, int[] states, Matches matches ) {
+    if (states.length == 0) return;
+
+    if (value instanceof DataObject) {
+      Iterator<IProperty> members = ((DataObject)value).getProperties( );
+      while (members != null && members.hasNext( )) {
+        IProperty member = members.next( );
+        if (!(member instanceof IntrinsicPropertyDelegate)) {
+          consume( member, states, matches );
+        }
+      }
+    }
+    else if (value instanceof PropertyList) {
+      Iterator<IProperty> entries = ((PropertyList)value).getProperties( );
+      while (entries != null && entries.hasNext( )) {
+        descend( entries.next( ), states, matches );
+      }
+    }
+  }
+
+  // sorted union of two sorted state sets
+  private static int[] union( int[] a, int[] b ) {
+    if (b.length == 0) return a;
+    if (a.length == 0) return b;
+    int[] u = new int[ a.length + b.length ];
+    int i = 0, j = 0, n = 0;
+    while (i < a.length || j < b.length) {
+      if (j == b.length || (i < a.length && a[i] < b[j])) {
+        u[n++] = a[i++];
+      }
+      else if (i == a.length || b[j] < a[i]) {
+        u[n++] = b[j++];
+      }
+      else {
+        u[n++] = a[i++];
+        j++;
+      }
+    }
+    if (n == a.length) return a;
+    int[] result = new int[ n ];
+    System.arraycopy( u, 0, result, 0, n );
+    return result;
+  }
+
+  // ---------------------------------------------------------------------------------------------------------------
+  // path expression syntax
+
+  private static List<Step> parse( String path ) {
+    String expr = path.trim( );
+    if (expr.startsWith( "/" )) {
+      expr = expr.substring( 1 );
+    }
+    ArrayList<Step> steps = new ArrayList<Step>( );
+    for (String segment : split( path, expr ) ) {
+      steps.add( parseStep( path, segment ) );
+    }
+    if (steps.isEmpty( )) {
+      throw invalid( path, "no steps" );
+    }
+    return steps;
+  }
+
+  // splits at the '/'s outside of selectors
+  private static List<String> split( String path, String expr ) {
+    ArrayList<String> segments = new ArrayList<String>( );
+    int depth = 0;
+    char quote = 0;
+    int begin = 0;
+    for (int i = 0; i < expr.length( ); i++) {
+      char ch = expr.charAt( i );
+      if (quote != 0) {
+        if (ch == quote) quote = 0;
+      }
+      else if (ch == '\'' || ch == '"') {
+        quote = ch;
+      }
+      else if (ch == '[') {
+        ++depth;
+      }
+      else if (ch == ']') {
+        --depth;
+      }
+      else if (ch == '/' && depth == 0) {
+        segments.add( expr.substring( begin, i ) );
+        begin = i + 1;
+      }
+    }
+    if (quote != 0 || depth != 0) {
+      throw invalid( path, "unbalanced quotes or brackets" );
+    }
+    segments.add( expr.substring( begin ) );
+    return segments;
+  }
+
+  private static Step parseStep( String path, String segment ) {
+    segment = segment.trim( );
+    int bracket = segment.indexOf( '[' );
+    String name = (bracket < 0) ? segment : segment.substring( 0, bracket ).trim( );
+    if (name.isEmpty( )) {
+      throw invalid( path, "empty step" );
+    }
+
+    ArrayList<Selector> selectors = new ArrayList<Selector>( );
+    int pos = bracket;
+    while (pos >= 0 && pos < segment.length( )) {
+      if (segment.charAt( pos ) != '[') {
+        throw invalid( path, "unexpected '" + segment.substring( pos ) + "'" );
+      }
+      int close = closingBracket( segment, pos );
+      Selector selector = parseSelector( path, segment.substring( pos + 1, close ).trim( ) );
+      if (selector != null) {
+        selectors.add( selector );
+      }
+      pos = close + 1;
+    }
+
+    if (name.equals( "**" )) {
+      if (bracket >= 0) {
+        throw invalid( path, "'**' cannot have selectors" );
+      }
+      return new Step( true, null, null, null );
+    }
+    Selector[] selectorArray = (bracket < 0) ? null : selectors.toArray( new Selector[ selectors.size( ) ] );
+    if (name.indexOf( '*' ) < 0 && name.indexOf( '?' ) < 0) {
+      return new Step( false, name, null, selectorArray );
+    }
+    return new Step( false, null, Pattern.compile( globRegex( name ), Pattern.DOTALL ), selectorArray );
+  }
+
+  private static int closingBracket( String segment, int open ) {
+    char quote = 0;
+    for (int i = open + 1; i < segment.length( ); i++) {
+      char ch = segment.charAt( i );
+      if (quote != 0) {
+        if (ch == quote) quote = 0;
+      }
+      else if (ch == '\'' || ch == '"') {
+        quote = ch;
+      }
+      else if (ch == ']') {
+        return i;
+      }
+    }
+    return segment.length( ) - 1;
+  }
+
+  // null for [*]
+  private static Selector parseSelector( String path, String text ) {
+    if (text.equals( "*" )) return null;
+
+    int eq = text.indexOf( '=' );
+    if (eq > 0) {
+      boolean negate = text.charAt( eq - 1 ) == '!';
+      String member = text.substring( 0, (negate) ? eq - 1 : eq ).trim( );
+      String value = text.substring( eq + 1 ).trim( );
+      if (value.length( ) >= 2 && (value.charAt( 0 ) == '\'' || value.charAt( 0 ) == '"')
+          && value.charAt( value.length( ) - 1 ) == value.charAt( 0 )) {
+        value = value.substring( 1, value.length( ) - 1 );
+      }
+      if (member.isEmpty( )) {
+        throw invalid( path, "selector [" + text + "] has no member name" );
+      }
+      return new Selector( member, value, negate );
+    }
+
+    try {
+      int colon = text.indexOf( ':' );
+      if (colon < 0) {
+        int index = Integer.parseInt( text );
+        return (index == -1) ? new Selector( -1, 0, true ) : new Selector( index, index + 1, false );
+      }
+      String from = text.substring( 0, colon ).trim( );
+      String to = text.substring( colon + 1 ).trim( );
+      return new Selector( (from.isEmpty( )) ? 0 : Integer.parseInt( from ),
+                           (to.isEmpty( )) ? 0 : Integer.parseInt( to ), to.isEmpty( ) );
+    }
+    catch ( NumberFormatException nfe ) {
+      throw invalid( path, "selector [" + text + "] is not an index, range or member value" );
+    }
+  }
+
+  /**
+   * @return the regular expression for a name with '*' and '?' wildcards.
+   */
+  static String globRegex( String glob ) {
+    StringBuilder regex = new StringBuilder( );
+    StringBuilder literal = new StringBuilder( );
+    for (char ch : glob.toCharArray( ) ) {
+      if (ch == '*' || ch == '?') {
+        if (literal.length( ) > 0) {
+          regex.append( Pattern.quote( literal.toString( ) ) );
+          literal.setLength( 0 );
+        }
+        regex.append( (ch == '*') ? ".*" : "." );
+      }
+      else {
+        literal.append( ch );
+      }
+    }
+    if (literal.length( ) > 0) {
+      regex.append( Pattern.quote( literal.toString( ) ) );
+    }
+    return regex.toString( );
+  }
+
+  private static IllegalArgumentException invalid( String path, String message ) {
+    return new IllegalArgumentException( "Invalid path expression '" + path + "': " + message );
+  }
+}
@@ -0,0 +1,163 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The input field value of a record. byte[], ByteBuffer and InputStream values are kept as UTF-8 bytes and parsed in
+ * place - they are decoded to a String (once) only if a parser or the failed records queue needs one. Any other
+ * value is used as its toString( ).
+ *
+ * ByteBuffers without an accessible array and InputStreams are read into the calling thread's scratch buffer (see
+ * ParserPool) which release( ) hands back. A RecordInput must not be used after release( ).
+ */
+final class RecordInput {
+
+  private final byte[] bytes;
+  private final int offset;
+  private final int length;
+  private final boolean pooled;
+  private String text;
+
+  private RecordInput( String text ) {
+    this.bytes = null;
+    this.offset = 0;
+    this.length = text.length( );
+    this.pooled = false;
+    this.text = text;
+  }
+
+  private RecordInput( byte[] bytes, int offset, int length, boolean pooled ) {
+    // a UTF-8 byte order mark is not part of the record
+    if (length >= 3 && bytes[offset] == (byte)0xEF && bytes[offset + 1] == (byte)0xBB && bytes[offset + 2] == (byte)0xBF) {
+      offset += 3;
+      length -= 3;
+    }
+    this.bytes = bytes;
+    this.offset = offset;
+    this.length = length;
+    this.pooled = pooled;
+  }
+
+  /**
+   * @return the input for a field value, null for a null value. An InputStream is read to its end and closed.
+   */
+  static RecordInput of( Object value ) throws IOException {
+    if (value == null) return null;
+
+    if (value instanceof byte[]) {
+      byte[] data = (byte[])value;
+      return new RecordInput( data, 0, data.length, false );
+    }
+    if (value instanceof ByteBuffer) {
+      ByteBuffer buffer = (ByteBuffer)value;
+      int len = buffer.remaining( );
+      if (buffer.hasArray( )) {
+        return new RecordInput( buffer.array( ), buffer.arrayOffset( ) + buffer.position( ), len, false );
+      }
+      // direct or read only buffer - copy without moving its position
+      byte[] data = ParserPool.get( ).borrowBytes( len );
+      buffer.duplicate( ).get( data, 0, len );
+      return new RecordInput( data, 0, len, true );
+    }
+    if (value instanceof InputStream) {
+      return read( (InputStream)value );
+    }
+    return new RecordInput( value.toString( ) );
+  }
+
+  /**
+   * @return a byte record over a range of a buffer that the caller owns.
+   */
+  static RecordInput wrap( byte[] bytes, int offset, int length ) {
+    return new RecordInput( bytes, offset, length, false );
+  }
+
+  /**
+   * @return the part [start, end) of this record as a record of its own - shares the bytes of a byte record.
+   */
+  RecordInput slice( int start, int end ) {
+    return (bytes != null) ? new RecordInput( bytes, offset + start, end - start, false )
+                           : new RecordInput( text.substring( start, end ) );
+  }
+
+  private static RecordInput read( InputStream in ) throws IOException {
+    ParserPool parsers = ParserPool.get( );
+    byte[] data = null;
+    try {
+      data = parsers.borrowBytes( Math.max( in.available( ), 8192 ) );
+      int len = 0;
+      int n;
+      while ((n = in.read( data, len, data.length - len )) != -1) {
+        len += n;
+        if (len == data.length) {
+          byte[] grown = new byte[ data.length * 2 ];
+          System.arraycopy( data, 0, grown, 0, len );
+          data = grown;
+        }
+      }
+      RecordInput input = new RecordInput( data, 0, len, true );
+      data = null;
+      return input;
+    }
+    finally {
+      if (data != null) {
+        parsers.returnBytes( data );
+      }
+      in.close( );
+    }
+  }
+
+  /**
+   * @return true if the record is a String - false for UTF-8 bytes.
+   */
+  boolean isText( ) {
+    return bytes == null;
+  }
+
+  /**
+   * @return the number of chars of a String record or the number of bytes of a byte record.
+   */
+  int length( ) {
+    return length;
+  }
+
+  byte[] getBytes( ) {
+    return bytes;
+  }
+
+  int getOffset( ) {
+    return offset;
+  }
+
+  /**
+   * @return the bytes of a byte record as a stream - for parsers that detect the encoding themselves.
+   */
+  InputStream openStream( ) {
+    return new ByteArrayInputStream( bytes, offset, length );
+  }
+
+  /**
+   * Hands a scratch buffer back to the thread's ParserPool.
+   */
+  void release( ) {
+    if (pooled) {
+      ParserPool.get( ).returnBytes( bytes );
+    }
+  }
+
+  /**
+   * @return the record as a String - decoded on first call for a byte record.
+   */
+  @Override
+  public String toString( ) {
+    if (text == null) {
+      text = new String( bytes, offset, length, StandardCharsets.UTF_8 );
+    }
+    return text;
+  }
+}
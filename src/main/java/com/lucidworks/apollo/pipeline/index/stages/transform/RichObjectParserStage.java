@@ -11,17 +11,16 @@ import com.lucidworks.apollo.pipeline.stages.Stage;
 import com.google.inject.Inject;
 import com.lucidworks.apollo.component.ResourceLoader;
 
-import com.lucidworks.apollo.modinfodesigns.BlobStoreObjectFactory;
+import com.lucidworks.apollo.modinfodesigns.DataTransformCache;
+import com.lucidworks.apollo.modinfodesigns.DateFormats;
+import com.lucidworks.apollo.modinfodesigns.DataTransformCache.NamedTransform;
+import com.lucidworks.apollo.modinfodesigns.DataTransformCache.TransformHandle;
 import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig;
-import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig.FieldMapping;
-import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig.InnerMapping;
 import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig.Format;
-import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig.Mode;
+import com.lucidworks.apollo.pipeline.index.transform.config.RichObjectParserConfig.InputMode;
+import com.lucidworks.apollo.pipeline.index.stages.transform.FieldMappingPlan.InnerStep;
+import com.lucidworks.apollo.pipeline.index.stages.transform.FieldMappingPlan.MappingStep;
 
-import com.modinfodesigns.app.ApplicationManager;
-import com.modinfodesigns.app.IObjectFactory;
-import com.modinfodesigns.app.ModInfoObjectFactory;
-import com.modinfodesigns.utils.FileMethods;
 import com.modinfodesigns.property.transform.IPropertyHolderTransform;
 import com.modinfodesigns.property.transform.PropertyTransformException;
 import com.modinfodesigns.property.IProperty;
@@ -29,17 +28,23 @@ import com.modinfodesigns.property.IDataObjectBuilder;
 import com.modinfodesigns.property.DataObject;
 import com.modinfodesigns.property.PropertyList;
 import com.modinfodesigns.property.IntrinsicPropertyDelegate;
+import com.modinfodesigns.property.BooleanProperty;
+import com.modinfodesigns.property.quantity.IntegerProperty;
+import com.modinfodesigns.property.quantity.ScalarQuantity;
+import com.modinfodesigns.property.time.DateProperty;
 
-import com.modinfodesigns.property.transform.json.JSONParserTransform;
-import com.modinfodesigns.property.transform.xml.XMLParserTransform;
-
-import com.modinfodesigns.utils.FileMethods;
-
-import java.util.Iterator;
-import java.util.List;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+import java.io.IOException;
 import java.io.StringWriter;
 import java.io.PrintWriter;
 
@@ -62,24 +67,43 @@ public class RichObjectParserStage extends IndexStage<RichObjectParserConfig> {
     
   private transient static final Logger LOG = LoggerFactory.getLogger( RichObjectParserStage.class );
 
-  private static String DATA_TRANSFORM = "DataTransform";
   private static String SOLR_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss'Z'";
   private static int STRING_MAX = 256;
+    
+  // list entries per fork-join task when child documents are built in parallel
+  private static final int CHILD_BATCH = 32;
+    
+  // about this many chars (bytes) of jsonl records are processed by one task
+  private static final int CHUNK_SIZE = 256 * 1024;
 
   private ResourceLoader resourceLoader;
     
+  private final DataTransformCache transformCache;
+    
+  private volatile TransformBinding transformBinding;
+    
   private String defaultFloat = "float";  // or "double"
     
   private boolean sendAllDocs = true;
     
-  private static int nReceived = 0;
-  private static int nProcessed = 0;
-  private static int nFailed = 0;
+  // compiled field mappings of the current config
+  private volatile FieldMappingPlan mappingPlan;
+    
+  private final ThreadLocal<StreamListener> streamListeners = new ThreadLocal<StreamListener>( ) {
+    @Override
+    protected StreamListener initialValue( ) {
+      return new StreamListener( );
+    }
+  };
+    
+  // metrics of the current config
+  private volatile StageMetrics metrics;
     
     
   @Inject
   public RichObjectParserStage( ResourceLoader resourceLoader ) {
     this.resourceLoader = resourceLoader;
+    this.transformCache = new DataTransformCache( resourceLoader );
   }
 
   @Override
@@ -87,213 +111,950 @@ public class RichObjectParserStage extends IndexStage<RichObjectParserConfig> {
                        PipelineCollector<PipelineDocument> collector, StageCallback<PipelineDocument> callback )
                        throws Exception {
     // LOG.debug( "RichObjectParser.process( ) ..." );
-    long startTime = System.currentTimeMillis( );
-                           
-    String inputField = config.getInputField( );
-    Format format = config.getFormat( );
-                           
-    String parentIDFieldName = config.getParentIDFieldName( );
+    processDocument( pipelineDoc, new ConfigState( config ), collector );
+  }
+    
+  /**
+   * Processes a batch of documents that share a config. Config lookups, transforms, parsers and the mapping plan
+   * are resolved once for the batch. The output of each document is buffered and written to the collector when the
+   * batch is done; a document that fails is filed like in process( ) and none of its output is written.
+   *
+   * @return the number of documents that failed.
+   */
+  public int processBatch( List<PipelineDocument> pipelineDocs, PipelineContext pipelineContext, RichObjectParserConfig config,
+                           PipelineCollector<PipelineDocument> collector ) throws Exception {
+    return processBatch( pipelineDocs, new ConfigState( config ), collector );
+  }
+    
+  private int processBatch( List<PipelineDocument> pipelineDocs, ConfigState state,
+                            PipelineCollector<PipelineDocument> collector ) throws Exception {
+    if (state.fileMode) {
+      // the records of a file are written as they are processed - a file's output is not held in memory
+      int nFailed = 0;
+      for (PipelineDocument pipelineDoc : pipelineDocs ) {
+        if (!processDocument( pipelineDoc, state, collector )) ++nFailed;
+      }
+      return nFailed;
+    }
+      
+    ParserPool parsers = ParserPool.get( );
+    ArrayList<PipelineDocument> output = parsers.borrowOutputBuffer( );
+    BufferingCollector buffer = new BufferingCollector( output );
+    int nFailed = 0;
+    try {
+      for (PipelineDocument pipelineDoc : pipelineDocs ) {
+        int mark = output.size( );
+        if (!processDocument( pipelineDoc, state, buffer )) {
+          // drop the linked documents that were written before the failure
+          output.subList( mark, output.size( ) ).clear( );
+          ++nFailed;
+        }
+      }
+    }
+    finally {
+      // LOG.debug( "processBatch writing " + output.size( ) + " docs" );
+      for (int i = 0; i < output.size( ); i++) {
+        collector.write( output.get( i ) );
+      }
+      parsers.returnOutputBuffer( output );
+    }
+    return nFailed;
+  }
+    
+  /**
+   * Per config state of a process / processBatch call - resolved once, on first use.
+   */
+  private final class ConfigState {
+    final RichObjectParserConfig config;
+    final StageMetrics metrics;
+    final String inputField;
+    // the input field holds the path of a file of records
+    final boolean fileMode;
+    // the format of a single record - json for jsonl
+    final Format format;
+    // jsonl: the input holds any number of records
+    final boolean splitRecords;
+    // the format failed records are filed with - set if a document is split into records
+    final String recordFormat;
+    // replaying filed records - records that fail again are filed without dropping
+    final boolean replay;
+    final String parentIDFieldName;
+    final FieldMappingPlan plan;
+    private List<IPropertyHolderTransform> transforms;
+    private boolean transformsLoaded = false;
+      
+    ConfigState( RichObjectParserConfig config ) {
+      this( config, config.getInputMode( ) == InputMode.file, config.getFormat( ), false );
+    }
+      
+    /**
+     * State for replaying filed records of a format - single records in the input field, whatever the config's
+     * input mode. A null recordFormat replays documents' input values with the config as is.
+     */
+    ConfigState( RichObjectParserConfig config, Format recordFormat ) {
+      this( config, (recordFormat == null) && config.getInputMode( ) == InputMode.file,
+            (recordFormat != null) ? recordFormat : config.getFormat( ), true );
+    }
+      
+    private ConfigState( RichObjectParserConfig config, boolean fileMode, Format format, boolean replay ) {
+      this.config = config;
+      this.metrics = getMetrics( config );
+      this.inputField = config.getInputField( );
+      this.fileMode = fileMode;
+      this.splitRecords = (format == Format.jsonl);
+      this.format = (splitRecords) ? Format.json : format;
+      this.recordFormat = (fileMode || splitRecords) ? this.format.name( ) : null;
+      this.replay = replay;
+      this.parentIDFieldName = config.getParentIDFieldName( );
+      this.plan = getMappingPlan( config );
+    }
+      
+    // the builder of the calling thread - records of a jsonl input are parsed on worker threads
+    IDataObjectBuilder getBuilder( ) throws Exception {
+      return ParserPool.get( ).getBuilder( format );
+    }
+      
+    /**
+     * Loaded on first use by one thread - call it before handing the state to other threads.
+     */
+    List<IPropertyHolderTransform> getTransforms( ) throws Exception {
+      if (!transformsLoaded) {
+        transforms = RichObjectParserStage.this.getTransforms( config );
+        transformsLoaded = true;
+      }
+      return transforms;
+    }
+  }
+    
+  /**
+   * Collects the documents of a batch until they are written to the stage collector.
+   */
+  private static final class BufferingCollector implements PipelineCollector<PipelineDocument> {
+    private final List<PipelineDocument> output;
+      
+    BufferingCollector( List<PipelineDocument> output ) {
+      this.output = output;
+    }
+      
+    @Override
+    public void write( PipelineDocument pipelineDoc ) {
+      output.add( pipelineDoc );
+    }
+  }
+    
+  /**
+   * @return false if the document failed and was filed.
+   */
+  private boolean processDocument( PipelineDocument pipelineDoc, ConfigState state, PipelineCollector<PipelineDocument> collector ) {
+    StageMetrics metrics = state.metrics;
                            
-    // LOG.debug( "parsing inputField " + inputField + " format = '" + format.toString( ) + "'" );
+    // LOG.debug( "parsing inputField " + state.inputField + " format = '" + state.format.toString( ) + "'" );
                            
-    String saveFailedRecordsToPath = config.getFailedRecordsPath( );
- 
-    String dataString = getDataString( inputField, pipelineDoc );
-    pipelineDoc.removeFields( inputField );
+    Object data = getDataValue( state.inputField, pipelineDoc );
+    pipelineDoc.removeFields( state.inputField );
                            
+    RecordInput input = null;
     try {
-      IDataObjectBuilder dobjBuilder = getDataObjectBuilder( format.toString().toUpperCase( ) );
+      // byte[], ByteBuffer and InputStream values stay UTF-8 bytes
+      input = RecordInput.of( data );
+      if (state.fileMode && input != null) {
+        processFile( pipelineDoc, input.toString( ), state, collector );
+        return true;
+      }
+      if (state.splitRecords && input != null) {
+        processRecords( pipelineDoc, input, state, collector );
+        return true;
+      }
+        
+      metrics.received( (input != null) ? input.length( ) : 0 );
+      processRecord( pipelineDoc, input, state, collector );
+      return true;
+    }
+    catch ( Throwable e ) {
+      recordFailed( pipelineDoc, input, e, state, null );
+      return false;
+    }
+    finally {
+      if (input != null) {
+        input.release( );
+      }
+    }
+  }
+    
+  /**
+   * Parses, transforms and maps one record into pipelineDoc and writes it (and its linked documents) to the collector.
+   */
+  private void processRecord( PipelineDocument pipelineDoc, RecordInput input, ConfigState state,
+                              PipelineCollector<PipelineDocument> collector ) throws Exception {
+    StageMetrics metrics = state.metrics;
+    IDataObjectBuilder dobjBuilder = state.getBuilder( );
                            
-      // LOG.debug( "Got data string: '" + dataString + "'" );
-      boolean processed = false;
-      if (dataString != null) {
-        DataObject dataObj = dobjBuilder.createDataObject( dataString );
-        // LOG.debug( "Got DataObject: " + dataObj.getValue( IProperty.XML_FORMAT ) );
-        long parseTime = System.currentTimeMillis( );
-        LOG.info( "parsing time was " + (parseTime  - startTime) + " milliseconds" );
+    // LOG.debug( "Got data string: '" + input + "'" );
+    boolean processed = false;
+    if (input != null) {
+      List<IPropertyHolderTransform> pTransforms = state.getTransforms( );
+      boolean hasTransforms = (pTransforms != null && !pTransforms.isEmpty( ));
         
-        boolean hasTransformErrors = false;
-        String transformErrors = "";
-        List<IPropertyHolderTransform> pTransforms = getTransforms( config );
-        if (pTransforms != null) {
-          // LOG.debug( "Applying Property Transforms " );
-          for (IPropertyHolderTransform pTransform : pTransforms ) {
-            // LOG.debug( "Applying PropertyTransform: " + pTransform );
-            try {
-              dataObj = (DataObject)pTransform.transformPropertyHolder( dataObj );
-            }
-            catch ( PropertyTransformException pte ) {
-              LOG.error( "Got PropertyTransformException!!! " + pte.getMessage( ) );
-              if (transformErrors == null) {
-                transformErrors = pte.getClass().getName( ) + ": " + pte.getMessage( );;
-              }
-              else {
-                transformErrors = transformErrors + "; " + pte.getClass().getName( ) + ": " + pte.getMessage( );
-              }
-
-              hasTransformErrors = true;
-            }
-          }
+      // without DataTransforms there is no need for a DataObject of the whole record - map JSON members as they are parsed
+      if (state.format == Format.json && state.config.useStreamingParser( ) && !hasTransforms
+          && streamDocument( pipelineDoc, input, state.plan, state.parentIDFieldName, collector, metrics )) {
+        processed = true;
+      }
+      else {
+        // DataTransforms may read any member of the record
+        FieldMappingPlan projection = (!hasTransforms && state.plan.isProjecting( )) ? state.plan : null;
+        long parseStart = System.nanoTime( );
+        DataObject dataObj = createDataObject( dobjBuilder, input, projection );
+        // LOG.debug( "Got DataObject: " + dataObj.getValue( IProperty.XML_FORMAT ) );
+        metrics.parsed( System.nanoTime( ) - parseStart );
+          
+        mapDataObject( pipelineDoc, dataObj, input, state, collector );
+        processed = true;
+      }
+    }
+    else {
+      LOG.error( "Data String field was null! Cannot process doc!" );
+    }
+                           
+    // LOG.debug( "process  DONE - writing pipelineDoc" );
+      
+    if ( processed || sendAllDocs ) {
+      collector.write( pipelineDoc );
+    }
+    if ( processed ) {
+      metrics.processed( );
+    }
+  }
+    
+  /**
+   * Applies the DataTransforms, dynamic fields and field mappings to the DataObject of a record.
+   *
+   * @param input the record - for the failed records queue, may be null
+   */
+  private void mapDataObject( PipelineDocument pipelineDoc, DataObject dataObj, RecordInput input, ConfigState state,
+                              PipelineCollector<PipelineDocument> collector ) throws Exception {
+    StageMetrics metrics = state.metrics;
+    List<IPropertyHolderTransform> pTransforms = state.getTransforms( );
+      
+    boolean hasTransformErrors = false;
+    String transformErrors = "";
+    if (pTransforms != null) {
+      // LOG.debug( "Applying Property Transforms " );
+      for (IPropertyHolderTransform pTransform : pTransforms ) {
+        // LOG.debug( "Applying PropertyTransform: " + pTransform );
+        long transformStart = System.nanoTime( );
+        try {
+          dataObj = (DataObject)pTransform.transformPropertyHolder( dataObj );
         }
+        catch ( PropertyTransformException pte ) {
+          LOG.error( "Got PropertyTransformException!!! " + pte.getMessage( ) );
+          if (transformErrors == null) {
+            transformErrors = pte.getClass().getName( ) + ": " + pte.getMessage( );;
+          }
+          else {
+            transformErrors = transformErrors + "; " + pte.getClass().getName( ) + ": " + pte.getMessage( );
+          }
 
-        long transformTime = System.currentTimeMillis( );
-        LOG.info( "Transform time was " + (transformTime - parseTime )+ " milliseconds" );
-          
-        if (hasTransformErrors) {
-          // LOG.debug( "Had Transform Errors");
-          fileFailedDoc( pipelineDoc, dataString, "Had Transform Errors: " + transformErrors, saveFailedRecordsToPath );
+          hasTransformErrors = true;
+        }
+        finally {
+          metrics.transformed( getTransformName( pTransform ), System.nanoTime( ) - transformStart );
         }
+      }
+    }
     
-        int nLinkedDocs = 0;
-          
-        HashSet<String> mappedFields = new HashSet<String>( );
-          
-        // LOG.debug( "Adding Dynamic Properties ... " );
-        Iterator<IProperty> props = dataObj.getProperties( );
-        while ( props != null && props.hasNext( ) ) {
-          IProperty prop = props.next( );
-          if (!(prop instanceof IntrinsicPropertyDelegate) && !mappedFields.contains( prop.getName( ))) {
-            addDynamicField( pipelineDoc, prop );
+    if (hasTransformErrors) {
+      // LOG.debug( "Had Transform Errors");
+      fileFailedDoc( pipelineDoc, input, "Had Transform Errors: " + transformErrors, null, state, state.recordFormat );
+    }
+
+    // LOG.debug( "Adding Dynamic Properties ... " );
+    long mapStart = System.nanoTime( );
+    Iterator<IProperty> props = dataObj.getProperties( );
+    while ( props != null && props.hasNext( ) ) {
+      IProperty prop = props.next( );
+      if (!(prop instanceof IntrinsicPropertyDelegate) && state.plan.isDynamicField( prop.getName( ) )) {
+        addDynamicField( pipelineDoc, prop, state.plan.getSuffixes( ), state.plan.useNativeValues( ) );
+      }
+    }
+    
+    mapFields( pipelineDoc, state.plan.collectMembers( dataObj ), state.plan.matchPatterns( dataObj ), state.plan,
+               state.parentIDFieldName, collector, metrics, mapStart );
+
+    dataObj.removeProperties( );
+  }
+    
+  /**
+   * File input mode: the input field holds the path of a local JSON or XML file. The file is memory mapped and split
+   * into records - the elements of a top level JSON array (or a single top level object), every top level value of
+   * a jsonl file or the XML elements that match rootXPath - and each record is processed as a document of its own
+   * with the id [document id]#[n]. Records fail (and are filed) individually, each with its own data - the XML of an
+   * XML record - and format. The file document itself is not written.
+   */
+  private void processFile( PipelineDocument fileDoc, String path, ConfigState state,
+                            PipelineCollector<PipelineDocument> collector ) throws Exception {
+    StageMetrics metrics = state.metrics;
+    // LOG.debug( "processFile " + path );
+    MappedFile file = new MappedFile( path );
+    try {
+      int nRecords = 0;
+      if (state.format == Format.json) {
+        JSONArraySplitter splitter = new JSONArraySplitter( file, state.splitRecords );
+        RecordInput input;
+        while ((input = splitter.next( )) != null) {
+          PipelineDocument recordDoc = createRecordDocument( fileDoc, nRecords++ );
+          metrics.received( input.length( ) );
+          try {
+            processRecord( recordDoc, input, state, collector );
+          }
+          catch ( Throwable e ) {
+            recordFailed( recordDoc, input, e, state, state.recordFormat );
           }
         }
-          
-        // LOG.debug( "Processing fieldMappings ... " );
-        List<FieldMapping> fieldMappings = config.getFieldMappings( );
-        for (FieldMapping fieldMapping : fieldMappings ) {
-          IProperty prop = dataObj.getProperty( fieldMapping.inputPath );
-          if (prop != null) {
-            String mode = fieldMapping.mode.toString( );
-            // LOG.debug( "Mode = '" + mode + "'" );
-            if ( mode.equals( "field" ) ) {
-              addField( pipelineDoc, prop, fieldMapping.solrField );
-              mappedFields.add( fieldMapping.inputPath );
-            }
-            else if (mode.equals( "linked_object" )) {
-              // LOG.debug( "linked object is a " + prop.getClass().getName() );
-              if (prop instanceof PropertyList ) {
-                Iterator<IProperty> propIt = ((PropertyList)prop).getProperties( );
-                while ( propIt.hasNext( ) ) {
-                  IProperty pr = propIt.next( );
-                  if (pr instanceof DataObject )
-                  {
-                    PipelineDocument pDoc = createPipelineDocument( pipelineDoc, (DataObject)pr, parentIDFieldName,
-                                                                    fieldMapping.parentIDField, fieldMapping.innerMappings, fieldMapping.copyParentFields );
-                    pDoc.setId( pipelineDoc.getId( ) + "#" + Integer.toString( nLinkedDocs++ ) );
-                    if (fieldMapping.solrField != null) {
-                      pDoc.addField( fieldMapping.solrField, ((DataObject)pr).getName( ) );
-                    }
-                    collector.write( pDoc );
-                  }
-                }
-                // LOG.debug( "linked_object DONE" );
-              }
-              else if (prop instanceof DataObject ) {
-                PipelineDocument pDoc = createPipelineDocument( pipelineDoc, (DataObject)prop, parentIDFieldName,
-                                                                fieldMapping.parentIDField, fieldMapping.innerMappings, fieldMapping.copyParentFields );
-                pDoc.setId( pipelineDoc.getId( ) + "#" + Integer.toString( nLinkedDocs++ ) );
-                if ( fieldMapping.solrField != null ) {
-                  pDoc.addField( fieldMapping.solrField, ((DataObject)prop).getName( ) );
-                }
-                collector.write( pDoc );
-              }
-            }
-            else if (mode.equals( "nested_object" )) {
-              if (prop instanceof PropertyList ) {
-                Iterator<IProperty> propIt = ((PropertyList)prop).getProperties( );
-                while ( propIt.hasNext( ) ) {
-                  IProperty pr = propIt.next( );
-                  if (pr instanceof DataObject )
-                  {
-                    PipelineDocument pDoc = createPipelineDocument( pipelineDoc, (DataObject)pr, parentIDFieldName,
-                                                                    fieldMapping.parentIDField, fieldMapping.innerMappings, fieldMapping.copyParentFields );
-                    pipelineDoc.addField( fieldMapping.solrField, pDoc );
-                  }
-                }
-              }
-              else if (prop instanceof DataObject ) {
-                PipelineDocument pDoc = createPipelineDocument( pipelineDoc, (DataObject)prop, parentIDFieldName,
-                                                                fieldMapping.parentIDField, fieldMapping.innerMappings, fieldMapping.copyParentFields );
-                pipelineDoc.addField( fieldMapping.solrField, pDoc );
-              }
-              mappedFields.add( fieldMapping.inputPath );
+      }
+      else {
+        List<IPropertyHolderTransform> pTransforms = state.getTransforms( );
+        FieldMappingPlan projection = ((pTransforms == null || pTransforms.isEmpty( )) && state.plan.isProjecting( ))
+                                    ? state.plan : null;
+        // the XML of each record is kept if failed records are filed
+        XMLRecordSplitter splitter = new XMLRecordSplitter( file.openStream( ), state.config.getRootXPath( ),
+                                                            (XMLRecordBuilder)state.getBuilder( ), projection,
+                                                            state.config.getFailedRecordsPath( ) != null );
+        try {
+          long parseStart = System.nanoTime( );
+          int lastOffset = 0;
+          DataObject dataObj;
+          while ((dataObj = splitter.next( )) != null) {
+            long mapStart = System.nanoTime( );
+            int offset = splitter.getCharacterOffset( );
+            PipelineDocument recordDoc = createRecordDocument( fileDoc, nRecords++ );
+            metrics.received( (offset > lastOffset) ? offset - lastOffset : 0 );
+            metrics.parsed( mapStart - parseStart );
+            lastOffset = offset;
+            RecordInput record = RecordInput.of( splitter.getRecordText( ) );
+            try {
+              mapDataObject( recordDoc, dataObj, record, state, collector );
+              collector.write( recordDoc );
+              metrics.processed( );
             }
-            else if (mode.equals("json_string" )) {
-              // LOG.debug( "adding JSON string field: " + fieldMapping.solrField + " = " + prop.getValue( IProperty.JSON_FORMAT ) );
-              pipelineDoc.addField( fieldMapping.solrField, prop.getValue( IProperty.JSON_FORMAT ));
-              mappedFields.add( fieldMapping.inputPath );
+            catch ( Throwable e ) {
+              recordFailed( recordDoc, record, e, state, state.recordFormat );
             }
+            parseStart = System.nanoTime( );
           }
         }
-
-        dataObj.removeProperties( );
-        dataObj = null;
-
-        processed = true;
+        finally {
+          splitter.close( );
+        }
       }
-      else {
-        LOG.error( "Data String field was null! Cannot process doc!" );
+      // LOG.debug( "processFile " + path + " DONE: " + nRecords + " records" );
+    }
+    finally {
+      file.close( );
+    }
+  }
+    
+  /**
+   * JSON Lines / concatenated JSON: every top level value of the input is a record that is processed as a child
+   * document with the id [document id]#[n] and the document's id in the parentIDFieldName field. The records are
+   * found by JSONRecordScanner and processed in chunks of about CHUNK_SIZE chars (bytes) - on the worker pool if
+   * there is more than one chunk. Children are written in record order, followed by the document itself. A record
+   * that fails is filed and none of its output is written.
+   */
+  private void processRecords( PipelineDocument pipelineDoc, RecordInput input, ConfigState state,
+                               PipelineCollector<PipelineDocument> collector ) throws Exception {
+    int[] bounds = JSONRecordScanner.scan( input );
+    int nRecords = bounds.length / 2;
+      
+    // chunk c holds the records [chunks[c], chunks[c + 1])
+    int[] chunks = new int[ nRecords + 1 ];
+    int nChunks = 0;
+    int chunkStart = 0;
+    for (int r = 0; r < nRecords; r++) {
+      if (r == 0 || bounds[2 * r + 1] - chunkStart > CHUNK_SIZE) {
+        chunks[nChunks++] = r;
+        chunkStart = bounds[2 * r];
       }
-                           
-      // LOG.debug( "process  DONE - writing pipelineDoc" );
+    }
+    chunks[nChunks] = nRecords;
+    // LOG.debug( "processRecords: " + nRecords + " records in " + nChunks + " chunks" );
+      
+    // the workers share the state - load the transforms here
+    state.getTransforms( );
+    ArrayList<ArrayList<PipelineDocument>> output = new ArrayList<ArrayList<PipelineDocument>>( nChunks );
+    for (int c = 0; c < nChunks; c++) {
+      output.add( new ArrayList<PipelineDocument>( ) );
+    }
+    RecordChunkTask task = new RecordChunkTask( pipelineDoc, input, bounds, chunks, output, state, 0, nChunks );
+    if (nChunks > 1) {
+      WorkerPool.POOL.invoke( task );
+    }
+    else {
+      task.compute( );
+    }
+      
+    for (ArrayList<PipelineDocument> chunkOutput : output ) {
+      for (PipelineDocument doc : chunkOutput ) {
+        collector.write( doc );
+      }
+    }
+    collector.write( pipelineDoc );
+  }
+    
+  /**
+   * Processes a range of record chunks of a jsonl input, splitting ranges of more than one chunk.
+   */
+  @SuppressWarnings( "serial" )
+  private final class RecordChunkTask extends RecursiveAction {
+    private final PipelineDocument parent;
+    private final RecordInput input;
+    private final int[] bounds;
+    private final int[] chunks;
+    private final List<ArrayList<PipelineDocument>> output;
+    private final ConfigState state;
+    private final int from;
+    private final int to;
+      
+    RecordChunkTask( PipelineDocument parent, RecordInput input, int[] bounds, int[] chunks,
+                     List<ArrayList<PipelineDocument>> output, ConfigState state, int from, int to ) {
+      this.parent = parent;
+      this.input = input;
+      this.bounds = bounds;
+      this.chunks = chunks;
+      this.output = output;
+      this.state = state;
+      this.from = from;
+      this.to = to;
+    }
       
-      if ( processed || sendAllDocs ) {
-        collector.write( pipelineDoc );
+    @Override
+    protected void compute( ) {
+      if (to - from > 1) {
+        int mid = (from + to) >>> 1;
+        invokeAll( new RecordChunkTask( parent, input, bounds, chunks, output, state, from, mid ),
+                   new RecordChunkTask( parent, input, bounds, chunks, output, state, mid, to ) );
+        return;
       }
         
-      long dur = System.currentTimeMillis( ) - startTime;
-      LOG.info( "RichObjectParser  Processing " + pipelineDoc.getId( ) + ": " + dataString.length() + " took " + dur + " (millis)" );
+      for (int c = from; c < to; c++) {
+        ArrayList<PipelineDocument> chunkOutput = output.get( c );
+        BufferingCollector buffer = new BufferingCollector( chunkOutput );
+        for (int r = chunks[c]; r < chunks[c + 1]; r++) {
+          RecordInput record = input.slice( bounds[2 * r], bounds[2 * r + 1] );
+          PipelineDocument recordDoc = createRecordDocument( parent, r );
+          if (state.parentIDFieldName != null) {
+            recordDoc.addField( state.parentIDFieldName, parent.getId( ) );
+          }
+          state.metrics.received( record.length( ) );
+          int mark = chunkOutput.size( );
+          try {
+            processRecord( recordDoc, record, state, buffer );
+          }
+          catch ( Throwable e ) {
+            chunkOutput.subList( mark, chunkOutput.size( ) ).clear( );
+            recordFailed( recordDoc, record, e, state, state.recordFormat );
+          }
+        }
+      }
     }
-    catch ( Throwable e ) {
-      ++nFailed;
-      // LOG.debug( "Failed:\n" + e.getClass( ).getName( ) + ": " + e.getMessage( ) );
+  }
+    
+  private static PipelineDocument createRecordDocument( PipelineDocument fileDoc, int n ) {
+    String id = fileDoc.getId( ) + "#" + Integer.toString( n );
+    PipelineDocument recordDoc = new PipelineDocument( id );
+    recordDoc.addField( "id", id );
+    return recordDoc;
+  }
+    
+  // counts and files a failed record with the format of a single record (null for a document) - Errors are rethrown
+  private void recordFailed( PipelineDocument pipelineDoc, RecordInput input, Throwable e, ConfigState state, String format ) {
+    state.metrics.failed( );
+    // LOG.debug( "Failed:\n" + e.getClass( ).getName( ) + ": " + e.getMessage( ) );
         
+    if (LOG.isDebugEnabled( )) {
       StringWriter sw = new StringWriter( );
       PrintWriter pw = new PrintWriter( sw );
       e.printStackTrace( pw );
       LOG.debug( sw.toString( ) );
+    }
         
-      fileFailedDoc(  pipelineDoc, dataString, e.getClass().getName( ) + "\n" + sw.toString( ), saveFailedRecordsToPath );
+    // the stack trace is rendered by the dead letter writer thread
+    fileFailedDoc( pipelineDoc, input, e.getClass().getName( ), e, state, format );
         
-      if (e instanceof Error) throw (Error)e;
+    if (e instanceof Error) throw (Error)e;
+  }
+    
+  // XML is parsed from the bytes of a byte record, the toolkit's JSON parser needs a String (and cannot project)
+  private static DataObject createDataObject( IDataObjectBuilder dobjBuilder, RecordInput input, FieldMappingPlan projection ) {
+    if (dobjBuilder instanceof XMLRecordBuilder) {
+      XMLRecordBuilder xmlBuilder = (XMLRecordBuilder)dobjBuilder;
+      return (input.isText( )) ? xmlBuilder.createDataObject( input.toString( ), projection )
+                               : xmlBuilder.createDataObject( input.openStream( ), projection );
     }
+    return dobjBuilder.createDataObject( input.toString( ) );
   }
 
-  private IDataObjectBuilder getDataObjectBuilder( String format ) throws Exception {
-    if (format.equalsIgnoreCase( "JSON" )) {
-      return new JSONParserTransform( );
+  /**
+   * Adds fields, linked documents and nested documents for the compiled FieldMappings. Input paths are resolved
+   * against the root member properties of the record, input path expressions are looked up in matches.
+   *
+   * @param mapStart System.nanoTime( ) when mapping of the record started
+   */
+  private void mapFields( PipelineDocument pipelineDoc, IProperty[] memberProps, PathAutomaton.Matches matches, FieldMappingPlan plan,
+                          String parentIDFieldName, PipelineCollector<PipelineDocument> collector,
+                          StageMetrics metrics, long mapStart ) {
+    int nLinkedDocs = 0;
+    int nChildren = 0;
+    long childNanos = 0;
+      
+    // LOG.debug( "Processing fieldMappings ... " );
+    for (MappingStep step : plan.getSteps( ) ) {
+      IProperty prop = plan.resolve( step, memberProps, matches );
+      if (prop == null) continue;
+        
+      switch (step.mode) {
+        case field:
+          addField( pipelineDoc, prop, step.solrField, plan.useNativeValues( ) );
+          break;
+              
+        case linked_object:
+          // LOG.debug( "linked object is a " + prop.getClass().getName() );
+          if (prop instanceof PropertyList ) {
+            long childStart = System.nanoTime( );
+            DataObject[] entries = getDataObjects( (PropertyList)prop );
+            PipelineDocument[] children = createPipelineDocuments( pipelineDoc, entries, parentIDFieldName, step, plan );
+            // IDs and collector order follow the list order - however the children were built
+            for (int c = 0; c < children.length; c++) {
+              PipelineDocument pDoc = children[c];
+              pDoc.setId( pipelineDoc.getId( ) + "#" + Integer.toString( nLinkedDocs++ ) );
+              if (step.solrField != null) {
+                pDoc.addField( step.solrField, entries[c].getName( ) );
+              }
+              collector.write( pDoc );
+            }
+            childNanos += System.nanoTime( ) - childStart;
+            nChildren += children.length;
+            // LOG.debug( "linked_object DONE" );
+          }
+          else if (prop instanceof DataObject ) {
+            long childStart = System.nanoTime( );
+            PipelineDocument pDoc = createPipelineDocument( new ParentFields( pipelineDoc, step ), (DataObject)prop,
+                                                            parentIDFieldName, step );
+            pDoc.setId( pipelineDoc.getId( ) + "#" + Integer.toString( nLinkedDocs++ ) );
+            if ( step.solrField != null ) {
+              pDoc.addField( step.solrField, ((DataObject)prop).getName( ) );
+            }
+            collector.write( pDoc );
+            childNanos += System.nanoTime( ) - childStart;
+            ++nChildren;
+          }
+          break;
+              
+        case nested_object:
+          if (prop instanceof PropertyList ) {
+            long childStart = System.nanoTime( );
+            PipelineDocument[] children = createPipelineDocuments( pipelineDoc, getDataObjects( (PropertyList)prop ),
+                                                                   parentIDFieldName, step, plan );
+            for (PipelineDocument pDoc : children ) {
+              pipelineDoc.addField( step.solrField, pDoc );
+            }
+            childNanos += System.nanoTime( ) - childStart;
+            nChildren += children.length;
+          }
+          else if (prop instanceof DataObject ) {
+            long childStart = System.nanoTime( );
+            PipelineDocument pDoc = createPipelineDocument( new ParentFields( pipelineDoc, step ), (DataObject)prop,
+                                                            parentIDFieldName, step );
+            pipelineDoc.addField( step.solrField, pDoc );
+            childNanos += System.nanoTime( ) - childStart;
+            ++nChildren;
+          }
+          break;
+              
+        case json_string:
+          // LOG.debug( "adding JSON string field: " + step.solrField + " = " + prop.getValue( IProperty.JSON_FORMAT ) );
+          pipelineDoc.addField( step.solrField, prop.getValue( IProperty.JSON_FORMAT ));
+          break;
+      }
     }
-    else if (format.equalsIgnoreCase( "XML" )) {
-      return new XMLParserTransform( );
+      
+    metrics.mapped( System.nanoTime( ) - mapStart - childNanos );
+    metrics.childrenEmitted( childNanos, nChildren );
+  }
+    
+  /**
+   * Single pass parse and map of a JSON record - root members are added as dynamic fields when the root object has
+   * been parsed. Only members referenced by a FieldMapping are kept for the mapping pass.
+   *
+   * @return false if the data string is not a JSON object and must be parsed by the DataObject builder.
+   */
+  private boolean streamDocument( PipelineDocument pipelineDoc, RecordInput input, FieldMappingPlan plan,
+                                  String parentIDFieldName, PipelineCollector<PipelineDocument> collector,
+                                  StageMetrics metrics ) throws PropertyTransformException {
+    ParserPool parsers = ParserPool.get( );
+    IProperty[] memberProps = parsers.getMemberArray( plan.getMemberCount( ) );
+    StreamListener listener = streamListeners.get( );
+    try {
+      PathAutomaton.Matches matches = plan.newMatches( );
+      listener.reset( pipelineDoc, plan, memberProps, matches );
+      long parseStart = System.nanoTime( );
+      boolean mapped = parsers.getStreamMapper( ).map( input, listener );
+      if (mapped) {
+        listener.addDynamicFields( );
+        // parse time includes the dynamic fields
+        long mapStart = System.nanoTime( );
+        metrics.parsed( mapStart - parseStart );
+        mapFields( pipelineDoc, memberProps, matches, plan, parentIDFieldName, collector, metrics, mapStart );
+      }
+      return mapped;
+    }
+    finally {
+      listener.release( );
+      parsers.releaseMemberArray( plan.getMemberCount( ) );
     }
+  }
+    
+  /**
+   * MemberListener of the streaming path - collects dynamic field members and referenced members. One per thread,
+   * reset for every document.
+   *
+   * Repeated member names are merged into one property the way the root DataObject merges them, for the mapping
+   * pass (addMember) and for dynamic fields alike: the dynamic fields are added once the whole root object is read,
+   * a repeated member as one multi valued field.
+   */
+  private final class StreamListener implements JSONStreamMapper.MemberListener {
+    private PipelineDocument pipelineDoc;
+    private FieldMappingPlan plan;
+    private IProperty[] memberProps;
+    private PathAutomaton.Matches matches;
+      
+    // dynamic field members in document order - a String or Boolean scalar value or an IProperty
+    private final ArrayList<String> dynamicNames = new ArrayList<String>( );
+    private final ArrayList<Object> dynamicValues = new ArrayList<Object>( );
+    private final HashSet<String> dynamicSeen = new HashSet<String>( );
+    private final HashSet<String> dynamicRepeated = new HashSet<String>( );
       
-    LOG.error( "ERROR: Could not find parser for " + format );
-    throw new Exception( "No parser for '" + format + "'" );
+    void reset( PipelineDocument pipelineDoc, FieldMappingPlan plan, IProperty[] memberProps, PathAutomaton.Matches matches ) {
+      this.pipelineDoc = pipelineDoc;
+      this.plan = plan;
+      this.memberProps = memberProps;
+      this.matches = matches;
+      clearDynamicMembers( );
+    }
+      
+    void release( ) {
+      this.pipelineDoc = null;
+      this.plan = null;
+      this.memberProps = null;
+      this.matches = null;
+      clearDynamicMembers( );
+    }
+      
+    private void clearDynamicMembers( ) {
+      dynamicNames.clear( );
+      dynamicValues.clear( );
+      dynamicSeen.clear( );
+      dynamicRepeated.clear( );
+    }
+      
+    private void addDynamicMember( String name, Object value ) {
+      dynamicNames.add( name );
+      dynamicValues.add( value );
+      if (!dynamicSeen.add( name )) {
+        dynamicRepeated.add( name );
+      }
+    }
+      
+    /**
+     * Adds the dynamic fields of the root members read - called when the root object is complete.
+     */
+    void addDynamicFields( ) {
+      for (int i = 0; i < dynamicNames.size( ); i++) {
+        String name = dynamicNames.get( i );
+        Object value = dynamicValues.get( i );
+        if (dynamicRepeated.contains( name )) {
+          // all occurrences at the first one - seen names are not needed any more
+          if (dynamicSeen.remove( name )) {
+            // a mapped member is merged already - the merge modifies the first occurrence, it must not be merged twice
+            int slot = plan.getMemberSlot( name );
+            IProperty merged = (slot >= 0) ? memberProps[ slot ] : mergeDynamicMember( name, i );
+            addDynamicField( pipelineDoc, merged, plan.getSuffixes( ), plan.useNativeValues( ) );
+          }
+        }
+        else if (value instanceof IProperty) {
+          addDynamicField( pipelineDoc, (IProperty)value, plan.getSuffixes( ), plan.useNativeValues( ) );
+        }
+        else {
+          addDynamicScalar( name, value.toString( ), value instanceof Boolean );
+        }
+      }
+    }
+      
+    private IProperty mergeDynamicMember( String name, int first ) {
+      DataObject merged = new DataObject( );
+      for (int i = first; i < dynamicNames.size( ); i++) {
+        if (dynamicNames.get( i ).equals( name )) {
+          Object value = dynamicValues.get( i );
+          merged.addProperty( (value instanceof IProperty) ? (IProperty)value
+                                                            : JSONStreamMapper.createScalarProperty( name, value.toString( ), value instanceof Boolean ) );
+        }
+      }
+      return merged.getProperty( name );
+    }
+      
+    private void addDynamicScalar( String name, String value, boolean isBoolean ) {
+      DynamicFieldTypes.Suffixes suffixes = plan.getSuffixes( );
+      String suffix = (suffixes != null) ? suffixes.get( name, false ) : null;
+      if (suffix == null) {
+        // same suffixes that addDynamicField would pick for a BooleanProperty or StringProperty
+        suffix = (isBoolean) ? "_b" : ((value.length( ) < STRING_MAX) ? "_s" : "_t");
+        if (suffixes != null && isBoolean) {
+          suffixes.learn( name, false, suffix );
+        }
+      }
+      pipelineDoc.addField( name + suffix, (isBoolean && plan.useNativeValues( )) ? (Object)Boolean.valueOf( value ) : value );
+    }
+      
+    @Override
+    public FieldMappingPlan.PathNode project( String name ) {
+      return plan.project( name );
+    }
+      
+    @Override
+    public void scalar( String name, String value, boolean isBoolean ) {
+      if (plan.isDynamicField( name )) {
+        addDynamicMember( name, (isBoolean) ? (Object)Boolean.valueOf( value ) : value );
+      }
+      int slot = plan.getMemberSlot( name );
+      boolean matched = (matches != null && plan.needsMember( name ));
+      if (slot >= 0 || matched) {
+        IProperty prop = JSONStreamMapper.createScalarProperty( name, value, isBoolean );
+        if (slot >= 0) {
+          addMember( memberProps, slot, prop );
+        }
+        if (matched) {
+          plan.matchMember( prop, matches );
+        }
+      }
+    }
+      
+    @Override
+    public void property( IProperty prop ) {
+      if (plan.isDynamicField( prop.getName( ) )) {
+        addDynamicMember( prop.getName( ), prop );
+      }
+      int slot = plan.getMemberSlot( prop.getName( ) );
+      if (slot >= 0) {
+        addMember( memberProps, slot, prop );
+      }
+      if (matches != null && plan.needsMember( prop.getName( ) )) {
+        plan.matchMember( prop, matches );
+      }
+    }
   }
     
-  private PipelineDocument createPipelineDocument( PipelineDocument parent, DataObject dobj, String parentIDFieldName,
-                                                  String parentIDField, List<InnerMapping> fieldMappings, List<String> copyParentFields ) {
-    // LOG.debug( "createPipelineDocument: " + dobj.getValue( IProperty.XML_FORMAT ));
-    PipelineDocument pDoc = new PipelineDocument( );
-    if (parentIDField != null) {
-      PipelineField parentField = parent.getFirstField( parentIDField );
-      // get the parent ID Field value from the parent ID Field
-      if (parentField != null) {
-        pDoc.addField( parentIDFieldName, parentField.getValue( ).toString( ) );
+  // repeated member names are merged into a list the same way a DataObject merges them
+  private static void addMember( IProperty[] memberProps, int slot, IProperty prop ) {
+    if (memberProps[ slot ] == null) {
+      memberProps[ slot ] = prop;
+    }
+    else {
+      DataObject merged = new DataObject( );
+      merged.addProperty( memberProps[ slot ] );
+      merged.addProperty( prop );
+      memberProps[ slot ] = merged.getProperty( prop.getName( ) );
+    }
+  }
+    
+  /**
+   * @return the metrics of a config of this stage - see StageMetrics for JMX access to all stage metrics.
+   */
+  public StageMetrics getMetrics( RichObjectParserConfig config ) {
+    StageMetrics metrics = this.metrics;
+    if (metrics == null || !metrics.isFor( config.getId( ) )) {
+      metrics = StageMetrics.get( getClass( ).getSimpleName( ), config.getId( ) );
+      this.metrics = metrics;
+    }
+    return metrics;
+  }
+    
+  private static String getTransformName( IPropertyHolderTransform pTransform ) {
+    return (pTransform instanceof NamedTransform) ? ((NamedTransform)pTransform).getName( ) : pTransform.getClass( ).getSimpleName( );
+  }
+    
+  /**
+   * @return the dynamic field suffixes known for a config - configured and learned (learnDynamicFieldSuffixes) -
+   *         by member path, in the form of the config's dynamicFieldSuffixes.
+   */
+  public Map<String, String> getDynamicFieldSuffixes( RichObjectParserConfig config ) {
+    return getMappingPlan( config ).exportSuffixes( );
+  }
+    
+  /**
+   * Stops learning dynamic field suffixes for a config - members without a known suffix are inspected from now on.
+   */
+  public void freezeDynamicFieldSuffixes( RichObjectParserConfig config ) {
+    getMappingPlan( config ).freezeSuffixes( );
+  }
+    
+  private FieldMappingPlan getMappingPlan( RichObjectParserConfig config ) {
+    FieldMappingPlan plan = this.mappingPlan;
+    if (plan == null || !plan.isCompiledFrom( config )) {
+      plan = FieldMappingPlan.compile( config );
+      this.mappingPlan = plan;
+    }
+    return plan;
+  }
+
+  // the DataObject entries of a linked / nested object list
+  private static DataObject[] getDataObjects( PropertyList list ) {
+    ArrayList<DataObject> entries = new ArrayList<DataObject>( );
+    Iterator<IProperty> propIt = list.getProperties( );
+    while ( propIt != null && propIt.hasNext( ) ) {
+      IProperty pr = propIt.next( );
+      if (pr instanceof DataObject ) {
+        entries.add( (DataObject)pr );
+      }
+    }
+    return entries.toArray( new DataObject[ entries.size( ) ] );
+  }
+    
+  /**
+   * Creates the child documents of a list of DataObjects - on the worker pool if the list is at least
+   * parallelChildThreshold long. The parent document is read once before the children are built, each DataObject
+   * is read by a single task. A record chunk task already running on the pool builds its lists sequentially: while
+   * joining, its worker could run a sibling chunk that resets the thread's member array and stream listener.
+   *
+   * @return the child documents in the order of the DataObjects.
+   */
+  private PipelineDocument[] createPipelineDocuments( PipelineDocument parent, DataObject[] entries, String parentIDFieldName,
+                                                      MappingStep step, FieldMappingPlan plan ) {
+    PipelineDocument[] children = new PipelineDocument[ entries.length ];
+    ParentFields parentFields = new ParentFields( parent, step );
+    if (plan.isParallel( entries.length ) && !isPoolWorker( )) {
+      WorkerPool.POOL.invoke( new ChildDocumentTask( parentFields, entries, children, parentIDFieldName, step, 0, entries.length ) );
+    }
+    else {
+      for (int c = 0; c < entries.length; c++) {
+        children[c] = createPipelineDocument( parentFields, entries[c], parentIDFieldName, step );
+      }
+    }
+    return children;
+  }
+    
+  /**
+   * Builds the child documents of a range of list entries, splitting ranges longer than CHILD_BATCH.
+   */
+  @SuppressWarnings( "serial" )
+  private final class ChildDocumentTask extends RecursiveAction {
+    private final ParentFields parent;
+    private final DataObject[] entries;
+    private final PipelineDocument[] children;
+    private final String parentIDFieldName;
+    private final MappingStep step;
+    private final int from;
+    private final int to;
+      
+    ChildDocumentTask( ParentFields parent, DataObject[] entries, PipelineDocument[] children, String parentIDFieldName,
+                       MappingStep step, int from, int to ) {
+      this.parent = parent;
+      this.entries = entries;
+      this.children = children;
+      this.parentIDFieldName = parentIDFieldName;
+      this.step = step;
+      this.from = from;
+      this.to = to;
+    }
+      
+    @Override
+    protected void compute( ) {
+      if (to - from <= CHILD_BATCH) {
+        for (int c = from; c < to; c++) {
+          children[c] = createPipelineDocument( parent, entries[c], parentIDFieldName, step );
+        }
       }
       else {
-        LOG.error( "Could not add parent field: " + parentIDField );
+        int mid = (from + to) >>> 1;
+        invokeAll( new ChildDocumentTask( parent, entries, children, parentIDFieldName, step, from, mid ),
+                   new ChildDocumentTask( parent, entries, children, parentIDFieldName, step, mid, to ) );
       }
     }
+  }
+    
+  private static boolean isPoolWorker( ) {
+    Thread thread = Thread.currentThread( );
+    return thread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread)thread).getPool( ) == WorkerPool.POOL;
+  }
+    
+  // builds child documents and processes jsonl record chunks - shared by all stage instances, created on first use
+  private static final class WorkerPool {
+    static final ForkJoinPool POOL = new ForkJoinPool( Runtime.getRuntime( ).availableProcessors( ),
+                                                       new ForkJoinPool.ForkJoinWorkerThreadFactory( ) {
+      @Override
+      public ForkJoinWorkerThread newThread( ForkJoinPool pool ) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread( pool );
+        thread.setName( "rich-object-parser-worker-" + thread.getPoolIndex( ) );
+        return thread;
+      }
+    }, null, false );
+  }
+
+  /**
+   * The parent ID and copyParentFields values of a mapping - read from the parent document once for all of its
+   * children instead of once per child. Each child still gets a new PipelineField per value: fields are owned by
+   * their document and can be set, so one instance cannot be shared between documents.
+   */
+  private static final class ParentFields {
+    final String parentID;
+    final String[] names;
+    final Object[] values;
+
+    ParentFields( PipelineDocument parent, MappingStep step ) {
+      String id = null;
+      if (step.parentIDField != null) {
+        PipelineField parentField = parent.getFirstField( step.parentIDField );
+        // get the parent ID Field value from the parent ID Field
+        if (parentField != null) {
+          id = parentField.getValue( ).toString( );
+        }
+        else {
+          LOG.error( "Could not add parent field: " + step.parentIDField );
+        }
+      }
+      this.parentID = id;
+
+      ArrayList<String> fieldNames = new ArrayList<String>( );
+      ArrayList<Object> fieldValues = new ArrayList<Object>( );
+      if (step.copyParentFields != null) {
+        for (String parentField : step.copyParentFields ) {
+          List<PipelineField> pFields = parent.getFields( parentField );
+          if (pFields != null) {
+            for (PipelineField field : pFields ) {
+              fieldNames.add( field.getName( ) );
+              fieldValues.add( field.getValue( ) );
+            }
+          }
+        }
+      }
+      this.names = fieldNames.toArray( new String[ fieldNames.size( ) ] );
+      this.values = fieldValues.toArray( );
+    }
+  }
+
+  private PipelineDocument createPipelineDocument( ParentFields parent, DataObject dobj, String parentIDFieldName,
+                                                   MappingStep step ) {
+    // LOG.debug( "createPipelineDocument: " + dobj.getValue( IProperty.XML_FORMAT ));
+    PipelineDocument pDoc = new PipelineDocument( );
+    if (parent.parentID != null) {
+      pDoc.addField( parentIDFieldName, parent.parentID );
+    }
      
     // LOG.debug( "Checking mapped Fields ..." );
-    HashSet<String> mappedFields = new HashSet<String>( );
-    if (fieldMappings != null) {
-      for ( InnerMapping fieldMapping : fieldMappings ) {
-        IProperty prop = dobj.getProperty( fieldMapping.inputPath );
-        if (prop != null) {
-          addField( pDoc, prop, fieldMapping.solrField );
-          mappedFields.add( fieldMapping.inputPath );
-        }
+    PathAutomaton.Matches innerMatches = (step.innerPatterns != null) ? step.innerPatterns.match( dobj ) : null;
+    for ( InnerStep innerStep : step.innerMappings ) {
+      IProperty prop = (innerStep.pattern >= 0) ? innerMatches.get( innerStep.pattern ) : dobj.getProperty( innerStep.inputPath );
+      if (prop != null) {
+        addField( pDoc, prop, innerStep.solrField, step.nativeValues );
       }
     }
     
@@ -301,27 +1062,21 @@ public class RichObjectParserStage extends IndexStage<RichObjectParserConfig> {
     Iterator<IProperty> props = dobj.getProperties( );
     while ( props != null && props.hasNext( ) ) {
       IProperty prop = props.next( );
-      if (!(prop instanceof IntrinsicPropertyDelegate) && !mappedFields.contains( prop.getName( ))) {
-        addDynamicField( pDoc, prop );
+      if (!(prop instanceof IntrinsicPropertyDelegate) && !step.innerInputPaths.contains( prop.getName( ))) {
+        addDynamicField( pDoc, prop, step.suffixes, step.nativeValues );
       }
     }
       
-    if (copyParentFields != null) {
-      for (String parentField : copyParentFields ) {
-        List<PipelineField> pFields = parent.getFields( parentField );
-        if (pFields != null) {
-          for (PipelineField field : pFields ) {
-            pDoc.addField( new PipelineField( field.getName(), field.getValue() ) ); // copy this
-          }
-        }
-      }
+    for (int i = 0; i < parent.names.length; i++) {
+      pDoc.addField( new PipelineField( parent.names[i], parent.values[i] ) );
     }
       
     // LOG.debug( "createPipelineDocument DONE!" );
     return pDoc;
   }
     
-  private void addDynamicField( PipelineDocument pDoc, IProperty prop ) {
+  private void addDynamicField( PipelineDocument pDoc, IProperty prop, DynamicFieldTypes.Suffixes suffixes,
+                                boolean nativeValues ) {
     if (prop == null) return;
     // LOG.debug( "addDynamicField " + prop.getClass().getName( ) );
     // -------------------------------------------------------------
@@ -329,29 +1084,34 @@ public class RichObjectParserStage extends IndexStage<RichObjectParserConfig> {
     // if instance of PropertyList - make it multiValue in Solr
     //   if type == StringProperty ... etc.
     // -------------------------------------------------------------
-    String suffix = "";
-    boolean multiValue = false;
-    if (prop instanceof PropertyList) multiValue = true;
-    String propType = getType( prop );
-        
-    // LOG.debug( "propType = '" + propType + "'" );
-    if (propType.equals( "com.modinfodesigns.property.quantity.IntegerProperty")) {
-      suffix = (multiValue) ? "_is" : "_i";
-    }
-    else if (propType.equals( "com.modinfodesigns.property.quantity.ScalarQuantity" )) {
-      suffix = (multiValue) ? ((defaultFloat.equals( "float" )) ? "_fs" : "_ds") : ((defaultFloat.equals( "float" )) ? "_f" : "_d");
-    }
-    else if (propType.equals( "com.modinfodesigns.property.time.DateProperty" )) {
-      suffix = (multiValue) ? "_dts" : "_dt";
-    }
-    else if (propType.equals( "com.modinfodesigns.property.BooleanProperty" )) {
-      suffix = (multiValue) ? "_bs" : "_b";
-    }
-    else if (propType.equals( "com.modinfodesigns.property.string.TextProperty" )) {
-      suffix = (multiValue) ? "_t" : "_txt";
+    boolean multiValue = (prop instanceof PropertyList);
+    String suffix = (suffixes != null) ? suffixes.get( prop.getName( ), multiValue ) : null;
+    if (suffix != null) {
+      addField( pDoc, prop, prop.getName( ) + suffix, nativeValues );
+      return;
     }
-    else {
-        String val = getValue( prop );
+
+    DynamicFieldTypes.Kind kind = DynamicFieldTypes.kindOf( prop );
+    String val = null;
+    // LOG.debug( "kind = '" + kind + "'" );
+    switch (kind) {
+      case INTEGER:
+        suffix = (multiValue) ? "_is" : "_i";
+        break;
+      case SCALAR:
+        suffix = (multiValue) ? ((defaultFloat.equals( "float" )) ? "_fs" : "_ds") : ((defaultFloat.equals( "float" )) ? "_f" : "_d");
+        break;
+      case DATE:
+        suffix = (multiValue) ? "_dts" : "_dt";
+        break;
+      case BOOLEAN:
+        suffix = (multiValue) ? "_bs" : "_b";
+        break;
+      case TEXT:
+        suffix = (multiValue) ? "_t" : "_txt";
+        break;
+      default:
+        val = prop.getValue( );
         if ( val.length() < STRING_MAX ) {
             suffix = (multiValue) ? "_ss" : "_s";
         }
@@ -359,44 +1119,57 @@ public class RichObjectParserStage extends IndexStage<RichObjectParserConfig> {
             suffix = (multiValue) ? "_txt" : "_t";
         }
     }
+    if (suffixes != null && val == null) {
+      // a string's suffix depends on its length - it is not learned, the value is needed anyway
+      suffixes.learn( prop.getName( ), multiValue, suffix );
+    }
       
-    String propName = new String( prop.getName( ) + suffix );
+    String propName = prop.getName( ) + suffix;
     // LOG.debug( "adding dynamic property: " + propName );
-    addField( pDoc, prop, propName );
- }
-    
-  private String getType( IProperty prop ) {
-    // LOG.debug( "getType of " + prop.getType( ) );
-    if (prop instanceof PropertyList) {
-      // first property in list defines it - could check if heterogeneous in which case type is String
-      Iterator<IProperty> propIt = ((PropertyList)prop).getProperties( );
-      String firstType = null;
-      while( propIt != null && propIt.hasNext( ) ) {
-        IProperty childProp = propIt.next( );
-        if (firstType == null) firstType = childProp.getType( );
-        else {
-          if (!childProp.getType().equals( firstType )) {
-            return "com.modinfodesigns.property.string.StringProperty";
-          }
-        }
-      }
-
-      return (firstType != null) ? firstType : "com.modinfodesigns.property.string.StringProperty";
+    if (val != null && !multiValue) {
+      // already have the value of a single string
+      pDoc.addField( propName, val );
     }
     else {
-      return (prop.getType( ) != null) ? prop.getType( ) : "com.modinfodesigns.property.string.StringProperty";
+      addField( pDoc, prop, propName, nativeValues );
     }
-  }
+ }
     
   private String getValue( IProperty prop ) {
-    if (getType( prop ).equals( "com.modinfodesigns.property.time.DateProperty" )) {
-      return prop.getValue( SOLR_DATE_FORMAT );
+    if (DynamicFieldTypes.kindOf( prop ) == DynamicFieldTypes.Kind.DATE) {
+      Date date = (prop instanceof DateProperty) ? ((DateProperty)prop).getDate( ) : null;
+      return (date != null) ? DateFormats.format( date, SOLR_DATE_FORMAT ) : prop.getValue( SOLR_DATE_FORMAT );
     }
       
     return prop.getValue( );
   }
     
-  private void addField( PipelineDocument pDoc, IProperty prop, String fieldName ) {
+  // the value of a single property - the Java value of an integer, scalar, boolean or date if nativeValues
+  private Object getFieldValue( IProperty prop, boolean nativeValues ) {
+    if (nativeValues) {
+      switch (DynamicFieldTypes.kindOf( prop )) {
+        case INTEGER:
+          if (prop instanceof IntegerProperty) return Integer.valueOf( ((IntegerProperty)prop).getIntegerValue( ) );
+          break;
+        case SCALAR:
+          if (prop instanceof ScalarQuantity) return Double.valueOf( ((ScalarQuantity)prop).getQuantity( ) );
+          break;
+        case BOOLEAN:
+          if (prop instanceof BooleanProperty) return Boolean.valueOf( ((BooleanProperty)prop).getBooleanValue( ) );
+          break;
+        case DATE:
+          if (prop instanceof DateProperty) {
+            Date date = ((DateProperty)prop).getDate( );
+            if (date != null) return date;
+          }
+          break;
+        default:
+      }
+    }
+    return getValue( prop );
+  }
+    
+  private void addField( PipelineDocument pDoc, IProperty prop, String fieldName, boolean nativeValues ) {
     if (prop instanceof PropertyList) {
       PropertyList pList = (PropertyList)prop;
       Iterator<IProperty> props = pList.getProperties( );
@@ -404,95 +1177,149 @@ public class RichObjectParserStage extends IndexStage<RichObjectParserConfig> {
         IProperty pr = props.next( );
         // LOG.debug( "List addField( " + fieldName + ", '" + pr.getValue( ) + "' )" );
         
-        pDoc.addField( fieldName, getValue( pr ) );
+        pDoc.addField( fieldName, getFieldValue( pr, nativeValues ) );
       }
     }
     else {
       // LOG.debug( "Single addField( " + fieldName + ", '" + prop.getValue( ) + " type: " + prop.getType( ) + "' )" );
-      pDoc.addField( fieldName, getValue( prop ) );
+      pDoc.addField( fieldName, getFieldValue( prop, nativeValues ) );
     }
   }
     
-  private String getDataString( String dataField, PipelineDocument pipelineDoc ) {
-    // LOG.debug( "getDataString from " + dataField );
+  private Object getDataValue( String dataField, PipelineDocument pipelineDoc ) {
+    // LOG.debug( "getDataValue from " + dataField );
     PipelineField field = pipelineDoc.getFirstField( dataField );
-    return (field != null && field.getValue() != null ) ? field.getValue( ).toString( ) : null;
+    return (field != null) ? field.getValue( ) : null;
   }
 
 
   private List<IPropertyHolderTransform> getTransforms( RichObjectParserConfig config ) throws Exception {
-    initObjectFactory( config );
-    ApplicationManager appMan = ApplicationManager.getInstance( );
-      
-    List<Object> appObjects = appMan.getApplicationObjects( DATA_TRANSFORM );
-    ArrayList<IPropertyHolderTransform> pTransforms = new ArrayList<IPropertyHolderTransform>( );
-    for (Object appObject : appObjects ) {
-      if (appObject instanceof IPropertyHolderTransform ) {
-        pTransforms.add( (IPropertyHolderTransform)appObject );
+    TransformBinding binding = this.transformBinding;
+    if (binding == null || binding.config != config) {
+      if (binding != null && !isSame( binding.config.getId( ), config.getId( ) )) {
+        // the stage moved to another config - stop refreshing the transforms of the old one
+        transformCache.release( binding.config.getId( ) );
+      }
+      String configFile = config.getDataObjectTransform( );
+      if (configFile == null) {
+        LOG.info( "No Data Object Transform Config - records will not be transformed" );
       }
+      TransformHandle handle = (configFile != null) ? transformCache.getHandle( config.getId( ), configFile, config.getTransformRefreshSeconds( ) ) : null;
+      binding = new TransformBinding( config, handle );
+      this.transformBinding = binding;
     }
       
-    return pTransforms;
+    return (binding.handle != null) ? binding.handle.getTransforms( ) : null;
   }
     
-
-  private void initObjectFactory( RichObjectParserConfig config ) {
+  private static boolean isSame( String value, String other ) {
+    return (value == null) ? other == null : value.equals( other );
+  }
+    
+  /**
+   * Releases the DataTransforms loaded by this stage and stops refreshing them - call when the stage is discarded.
+   */
+  public void close( ) {
+    this.transformBinding = null;
+    transformCache.close( );
+  }
+    
+  // the transform handle for the current config
+  private static final class TransformBinding {
+    final RichObjectParserConfig config;
+    final TransformHandle handle;
       
-    // LOG.debug( "initObjectFactory" );
-    String configFile = config.getDataObjectTransform( );
-    if (configFile == null)
-    {
-      LOG.error( "Config file is NULL!" );
-      return;
-    }
-     
-    // LOG.debug( "initializing object factory: " + configFile );
-    ApplicationManager appMan = ApplicationManager.getInstance( );
-    if (appMan.getObjectFactory( configFile ) == null) {
-      synchronized( this ) {
-        IObjectFactory objectFac = null;
-        
-        // check if configFile is has a file path or just a file name - if path, use ModInfoObjectFactory
-        // if a filename - use BlobStoreObjectFactory
-        if (configFile.startsWith( "/" )) {
-          // read file with FileMethods
-          String configXML = FileMethods.readFile( configFile );
-          // LOG.debug( "Initializing ModInfoObjectFactory with " + configXML );
-          objectFac = new ModInfoObjectFactory( );
-          objectFac.initialize( configXML );
-        }
-        else {
-          objectFac = new BlobStoreObjectFactory( this.resourceLoader );
-          objectFac.initialize( configFile );
-        }
-          
-        appMan.addObjectFactory( configFile, objectFac );
-      }
+    TransformBinding( RichObjectParserConfig config, TransformHandle handle ) {
+      this.config = config;
+      this.handle = handle;
     }
   }
     
-  private void fileFailedDoc( PipelineDocument pipelineDoc, String dataString, String failedMessage, String saveFailedRecordsToPath ) {
+  /**
+   * Queues a failed record for the dead letter writer of the config's failedRecordsPath. Never blocks - if
+   * the writer falls behind, failed records are dropped and counted. A replay waits for space instead.
+   *
+   * @param format the format of a single record taken from a document, null if input is the document's input
+   */
+  private void fileFailedDoc( PipelineDocument pipelineDoc, RecordInput input, String failedMessage, Throwable error,
+                              ConfigState state, String format ) {
     // LOG.debug( "fileFailedDoc: " + failedMessage );
-    // save dataString to a file!
+    RichObjectParserConfig config = state.config;
+    String saveFailedRecordsToPath = config.getFailedRecordsPath( );
     if (saveFailedRecordsToPath != null ) {
-      // get the file name from the solr doc ...
+      // get the record id from the solr doc ...
       PipelineField pField = pipelineDoc.getFirstField( "id" );
       if (pField != null && pField.getValue() != null) {
         String id = pField.getValue( ).toString( );
-        String fileName =  ( id.indexOf( "/" ) < 0 ) ? id : id.substring( id.lastIndexOf( "/" ) + 1 );
-                
-        String errorList = saveFailedRecordsToPath + "/errors.txt";
-        String errorLine = Integer.toString( nFailed ) + " of " + Integer.toString( nReceived ) + ") " + id + ": " + failedMessage;
-        FileMethods.addToFile( errorList, errorLine );
-                
-        fileName = saveFailedRecordsToPath + "/" + fileName;
-        FileMethods.writeFile( fileName, dataString );
+        long fileStart = System.nanoTime( );
+        DeadLetterWriter writer = DeadLetterWriter.forPath( saveFailedRecordsToPath, config.compressFailedRecords( ),
+                                                            config.getFailedRecordsSegmentMB( ) );
+        // byte records are decoded here - the record outlives the input's scratch buffer
+        String payload = (input != null) ? input.toString( ) : null;
+        DeadLetterRecord record = new DeadLetterRecord( id, System.currentTimeMillis( ), failedMessage, error, format, payload );
+        if (state.replay) {
+          writer.put( record );
+        }
+        else {
+          writer.offer( record );
+        }
+        getMetrics( config ).failureFiled( System.nanoTime( ) - fileStart );
       }
     }
   }
-
-
     
+  /**
+   * Replays the records in the failedRecordsPath of a config back through this stage, batchSize records at a time.
+   * Each record is processed as a new document with its id and its data string in the input field. A record that
+   * was taken from a document (a record of a file or of a jsonl input) is processed on its own in its format, in
+   * field mode, and keeps the id it was filed with - other records are processed with the config as is.
+   * Records that fail again are filed again, to a new segment, waiting for the writer rather than dropping them. A
+   * batch's segments are deleted once the records it filed have been written - if any failed record of the path
+   * was dropped meanwhile, the replay stops with an IOException and keeps the segments.
+   *
+   * @return the number of records replayed
+   */
+  public int replayFailedRecords( final RichObjectParserConfig config, final PipelineContext pipelineContext,
+                                  final PipelineCollector<PipelineDocument> collector, int batchSize ) throws Exception {
+    if (config.getFailedRecordsPath( ) == null) return 0;
+      
+    // records filed from now on are not part of this replay
+    int lastSegment = DeadLetterWriter.rollSegment( config.getFailedRecordsPath( ) );
+    final DeadLetterWriter writer = DeadLetterWriter.forPath( config.getFailedRecordsPath( ), config.compressFailedRecords( ),
+                                                              config.getFailedRecordsSegmentMB( ) );
+    DeadLetterReader reader = new DeadLetterReader( config.getFailedRecordsPath( ) );
+    return reader.replay( batchSize, lastSegment, new DeadLetterReader.BatchHandler( ) {
+      @Override
+      public void handle( List<DeadLetterRecord> batch ) throws Exception {
+        long dropped = writer.getDroppedCount( );
+        // runs of records with the same format are processed together, in order
+        int start = 0;
+        while (start < batch.size( )) {
+          String format = batch.get( start ).getFormat( );
+          ArrayList<PipelineDocument> pipelineDocs = new ArrayList<PipelineDocument>( );
+          int end = start;
+          while (end < batch.size( ) && isSame( format, batch.get( end ).getFormat( ) )) {
+            DeadLetterRecord record = batch.get( end++ );
+            PipelineDocument pipelineDoc = new PipelineDocument( record.getId( ) );
+            pipelineDoc.addField( "id", record.getId( ) );
+            pipelineDoc.addField( config.getInputField( ), record.getPayload( ) );
+            pipelineDocs.add( pipelineDoc );
+          }
+          ConfigState state = (format != null) ? new ConfigState( config, Format.valueOf( format ) ) : new ConfigState( config );
+          processBatch( pipelineDocs, state, collector );
+          start = end;
+        }
+          
+        // the reader deletes the replayed segments when this returns
+        writer.flush( );
+        if (writer.getDroppedCount( ) != dropped) {
+          throw new IOException( "Failed records of " + config.getFailedRecordsPath( )
+                               + " were dropped during replay - keeping the replayed segments" );
+        }
+      }
+    } );
+  }
+
   @Override
   public Class<RichObjectParserConfig> getStageConfigClass() {
     return RichObjectParserConfig.class;
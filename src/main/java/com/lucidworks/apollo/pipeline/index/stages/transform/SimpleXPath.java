@@ -0,0 +1,180 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import java.util.ArrayList;
+
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * The XPaths most mapping rules are - child element steps by name or '*', optionally ending with an attribute step
+ * (@name) or text( ): /record/title, /record/field/@name, /record/items/item/text() - evaluated by walking the DOM
+ * instead of by the JAXP XPath engine. The node sets are the ones the JDK XPath engine selects on the same DOM:
+ *
+ * - unprefixed name tests match elements and attributes without namespace (the local name after the prefix in a
+ *   DOM that is not namespace aware)
+ * - namespace declarations are not attributes
+ * - text( ) selects the first node of each run of adjacent text and CDATA nodes
+ *
+ * Everything else - predicates, other axes, prefixed names, functions - is left to JAXP: compile( ) returns null.
+ */
+final class SimpleXPath {
+
+  private static final int ELEMENTS = 0;
+  private static final int ATTRIBUTES = 1;
+  private static final int TEXT = 2;
+
+  private final boolean absolute;
+  private final String[] steps;  // element names, null for '*'
+  private final int select;
+  private final String attribute;
+
+  private SimpleXPath( boolean absolute, String[] steps, int select, String attribute ) {
+    this.absolute = absolute;
+    this.steps = steps;
+    this.select = select;
+    this.attribute = attribute;
+  }
+
+  /**
+   * @return the evaluator of an XPath, null if it is not a simple path.
+   */
+  static SimpleXPath compile( String xpath ) {
+    if (xpath == null) return null;
+    String expr = xpath.trim( );
+    boolean absolute = expr.startsWith( "/" );
+    if (absolute) expr = expr.substring( 1 );
+    if (expr.isEmpty( )) return null;
+
+    String[] parts = expr.split( "/", -1 );
+    ArrayList<String> steps = new ArrayList<String>( );
+    int select = ELEMENTS;
+    String attribute = null;
+    for (int i = 0; i < parts.length; i++) {
+      String part = parts[i];
+      boolean last = (i == parts.length - 1);
+      if (part.equals( "*" )) {
+        steps.add( null );
+      }
+      else if (isNCName( part )) {
+        steps.add( part );
+      }
+      else if (last && part.equals( "text()" )) {
+        select = TEXT;
+      }
+      else if (last && part.startsWith( "@" ) && isNCName( part.substring( 1 ) )) {
+        select = ATTRIBUTES;
+        attribute = part.substring( 1 );
+      }
+      else {
+        return null;
+      }
+    }
+    return new SimpleXPath( absolute, steps.toArray( new String[ steps.size( ) ] ), select, attribute );
+  }
+
+  /**
+   * @return the nodes selected from a context node, in document order.
+   */
+  NodeList evaluate( Node context ) {
+    Node root = (absolute && context.getNodeType( ) != Node.DOCUMENT_NODE) ? context.getOwnerDocument( ) : context;
+    ArrayList<Node> nodes = new ArrayList<Node>( );
+    nodes.add( root );
+
+    for (String step : steps) {
+      ArrayList<Node> children = new ArrayList<Node>( );
+      for (Node node : nodes) {
+        for (Node child = node.getFirstChild( ); child != null; child = child.getNextSibling( )) {
+          if (child.getNodeType( ) == Node.ELEMENT_NODE && (step == null || nameMatches( child, step ))) {
+            children.add( child );
+          }
+        }
+      }
+      if (children.isEmpty( )) return new Nodes( children );
+      nodes = children;
+    }
+
+    if (select == ATTRIBUTES) {
+      ArrayList<Node> attributes = new ArrayList<Node>( );
+      for (Node node : nodes) {
+        NamedNodeMap attrs = node.getAttributes( );
+        for (int i = 0; i < attrs.getLength( ); i++) {
+          Attr attr = (Attr)attrs.item( i );
+          if (!isNamespaceDeclaration( attr ) && nameMatches( attr, attribute )) {
+            attributes.add( attr );
+          }
+        }
+      }
+      return new Nodes( attributes );
+    }
+    if (select == TEXT) {
+      ArrayList<Node> texts = new ArrayList<Node>( );
+      for (Node node : nodes) {
+        boolean inText = false;
+        for (Node child = node.getFirstChild( ); child != null; child = child.getNextSibling( )) {
+          boolean text = isText( child );
+          if (text && !inText) {
+            texts.add( child );
+          }
+          inText = text;
+        }
+      }
+      return new Nodes( texts );
+    }
+    return new Nodes( nodes );
+  }
+
+  private static boolean nameMatches( Node node, String name ) {
+    String localName = node.getLocalName( );
+    if (localName != null) {
+      // namespace aware DOM
+      return node.getNamespaceURI( ) == null && localName.equals( name );
+    }
+    String nodeName = node.getNodeName( );
+    return nodeName.endsWith( name ) && nodeName.indexOf( ':' ) == nodeName.length( ) - name.length( ) - 1;
+  }
+
+  private static boolean isNamespaceDeclaration( Attr attr ) {
+    if (attr.getLocalName( ) != null) {
+      return XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals( attr.getNamespaceURI( ) );
+    }
+    String name = attr.getName( );
+    return name.equals( XMLConstants.XMLNS_ATTRIBUTE ) || name.startsWith( XMLConstants.XMLNS_ATTRIBUTE + ":" );
+  }
+
+  private static boolean isText( Node node ) {
+    return node.getNodeType( ) == Node.TEXT_NODE || node.getNodeType( ) == Node.CDATA_SECTION_NODE;
+  }
+
+  private static boolean isNCName( String name ) {
+    if (name.isEmpty( )) return false;
+    for (int i = 0; i < name.length( ); i++) {
+      char ch = name.charAt( i );
+      if (Character.isLetter( ch ) || ch == '_') continue;
+      if (i > 0 && (Character.isDigit( ch ) || ch == '-' || ch == '.')) continue;
+      return false;
+    }
+    return true;
+  }
+
+  private static final class Nodes implements NodeList {
+    private final ArrayList<Node> nodes;
+
+    Nodes( ArrayList<Node> nodes ) {
+      this.nodes = nodes;
+    }
+
+    @Override
+    public Node item( int index ) {
+      return (index >= 0 && index < nodes.size( )) ? nodes.get( index ) : null;
+    }
+
+    @Override
+    public int getLength( ) {
+      return nodes.size( );
+    }
+  }
+}
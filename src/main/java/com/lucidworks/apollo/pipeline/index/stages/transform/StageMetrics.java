@@ -0,0 +1,244 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters and phase histograms of one stage config. Created on first use for a (stage type, config id) and
+ * registered with the platform MBeanServer as com.lucidworks.apollo.pipeline:type=[stage type],name=[config id].
+ *
+ * Recording only touches LongAdders. Times are passed in nanoseconds and recorded in microseconds.
+ */
+public final class StageMetrics implements StageMetricsMXBean {
+  private transient static final Logger LOG = LoggerFactory.getLogger( StageMetrics.class );
+
+  public static final String JMX_DOMAIN = "com.lucidworks.apollo.pipeline";
+
+  private static final ConcurrentHashMap<String, StageMetrics> registry = new ConcurrentHashMap<String, StageMetrics>( );
+
+  private final String stageType;
+  private final String configId;
+
+  private final LongAdder received = new LongAdder( );
+  private final LongAdder processed = new LongAdder( );
+  private final LongAdder failed = new LongAdder( );
+  private final LongAdder failuresFiled = new LongAdder( );
+  private final LongAdder childDocuments = new LongAdder( );
+
+  private final LogHistogram parseTime = new LogHistogram( );
+  private final ConcurrentHashMap<String, LogHistogram> transformTimes = new ConcurrentHashMap<String, LogHistogram>( );
+  private final LogHistogram mappingTime = new LogHistogram( );
+  private final LogHistogram childEmissionTime = new LogHistogram( );
+  private final LogHistogram failureFilingTime = new LogHistogram( );
+  private final LogHistogram documentSize = new LogHistogram( );
+  private final LogHistogram childFanout = new LogHistogram( );
+
+  private StageMetrics( String stageType, String configId ) {
+    this.stageType = stageType;
+    this.configId = configId;
+  }
+
+  /**
+   * Returns the metrics of a stage config, creating and registering them on first use.
+   */
+  public static StageMetrics get( String stageType, String configId ) {
+    String id = (configId != null) ? configId : "default";
+    String key = stageType + "/" + id;
+    StageMetrics metrics = registry.get( key );
+    if (metrics == null) {
+      StageMetrics newMetrics = new StageMetrics( stageType, id );
+      metrics = registry.putIfAbsent( key, newMetrics );
+      if (metrics == null) {
+        metrics = newMetrics;
+        metrics.register( );
+      }
+    }
+    return metrics;
+  }
+
+  /**
+   * @return the metrics of all stage configs that have processed documents in this JVM.
+   */
+  public static Collection<StageMetrics> getAll( ) {
+    return Collections.unmodifiableCollection( registry.values( ) );
+  }
+
+  boolean isFor( String configId ) {
+    return this.configId.equals( (configId != null) ? configId : "default" );
+  }
+
+  // ---- recording ----
+
+  void received( long documentChars ) {
+    received.increment( );
+    documentSize.record( documentChars );
+  }
+
+  void processed( ) {
+    processed.increment( );
+  }
+
+  void failed( ) {
+    failed.increment( );
+  }
+
+  void parsed( long nanos ) {
+    parseTime.record( micros( nanos ) );
+  }
+
+  void transformed( String transformName, long nanos ) {
+    LogHistogram histogram = transformTimes.get( transformName );
+    if (histogram == null) {
+      LogHistogram newHistogram = new LogHistogram( );
+      histogram = transformTimes.putIfAbsent( transformName, newHistogram );
+      if (histogram == null) histogram = newHistogram;
+    }
+    histogram.record( micros( nanos ) );
+  }
+
+  void mapped( long nanos ) {
+    mappingTime.record( micros( nanos ) );
+  }
+
+  /**
+   * Records the time spent creating and emitting the child documents of one record and how many there were.
+   */
+  void childrenEmitted( long nanos, int nChildren ) {
+    childEmissionTime.record( micros( nanos ) );
+    childFanout.record( nChildren );
+    childDocuments.add( nChildren );
+  }
+
+  void failureFiled( long nanos ) {
+    failuresFiled.increment( );
+    failureFilingTime.record( micros( nanos ) );
+  }
+
+  // ---- pull API / JMX ----
+
+  @Override
+  public String getStageType( ) {
+    return stageType;
+  }
+
+  @Override
+  public String getConfigId( ) {
+    return configId;
+  }
+
+  @Override
+  public long getReceived( ) {
+    return received.sum( );
+  }
+
+  @Override
+  public long getProcessed( ) {
+    return processed.sum( );
+  }
+
+  @Override
+  public long getFailed( ) {
+    return failed.sum( );
+  }
+
+  @Override
+  public long getFailuresFiled( ) {
+    return failuresFiled.sum( );
+  }
+
+  @Override
+  public long getChildDocuments( ) {
+    return childDocuments.sum( );
+  }
+
+  @Override
+  public HistogramSnapshot getParseTime( ) {
+    return parseTime.snapshot( );
+  }
+
+  @Override
+  public Map<String, HistogramSnapshot> getTransformTimes( ) {
+    TreeMap<String, HistogramSnapshot> snapshots = new TreeMap<String, HistogramSnapshot>( );
+    for (Map.Entry<String, LogHistogram> entry : transformTimes.entrySet( ) ) {
+      snapshots.put( entry.getKey( ), entry.getValue( ).snapshot( ) );
+    }
+    return snapshots;
+  }
+
+  @Override
+  public HistogramSnapshot getMappingTime( ) {
+    return mappingTime.snapshot( );
+  }
+
+  @Override
+  public HistogramSnapshot getChildEmissionTime( ) {
+    return childEmissionTime.snapshot( );
+  }
+
+  @Override
+  public HistogramSnapshot getFailureFilingTime( ) {
+    return failureFilingTime.snapshot( );
+  }
+
+  @Override
+  public HistogramSnapshot getDocumentSize( ) {
+    return documentSize.snapshot( );
+  }
+
+  @Override
+  public HistogramSnapshot getChildFanout( ) {
+    return childFanout.snapshot( );
+  }
+
+  @Override
+  public void reset( ) {
+    received.reset( );
+    processed.reset( );
+    failed.reset( );
+    failuresFiled.reset( );
+    childDocuments.reset( );
+    parseTime.reset( );
+    transformTimes.clear( );
+    mappingTime.reset( );
+    childEmissionTime.reset( );
+    failureFilingTime.reset( );
+    documentSize.reset( );
+    childFanout.reset( );
+  }
+
+  @Override
+  public String toString( ) {
+    return stageType + "[" + configId + "] received=" + getReceived( ) + " processed=" + getProcessed( )
+         + " failed=" + getFailed( ) + " parse(us): " + getParseTime( ) + " mapping(us): " + getMappingTime( );
+  }
+
+  private void register( ) {
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer( );
+      ObjectName name = new ObjectName( JMX_DOMAIN + ":type=" + stageType + ",name=" + ObjectName.quote( configId ) );
+      if (!mbeanServer.isRegistered( name )) {
+        mbeanServer.registerMBean( this, name );
+      }
+    }
+    catch ( Exception e ) {
+      LOG.warn( "Could not register metrics MBean for " + stageType + " " + configId + ": " + e );
+    }
+  }
+
+  private static long micros( long nanos ) {
+    return TimeUnit.NANOSECONDS.toMicros( nanos );
+  }
+}
@@ -0,0 +1,39 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import java.util.Map;
+
+/**
+ * JMX view of the StageMetrics of one stage config. Times are in microseconds, sizes in characters.
+ */
+public interface StageMetricsMXBean {
+
+  String getStageType( );
+
+  String getConfigId( );
+
+  long getReceived( );
+
+  long getProcessed( );
+
+  long getFailed( );
+
+  long getFailuresFiled( );
+
+  long getChildDocuments( );
+
+  HistogramSnapshot getParseTime( );
+
+  Map<String, HistogramSnapshot> getTransformTimes( );
+
+  HistogramSnapshot getMappingTime( );
+
+  HistogramSnapshot getChildEmissionTime( );
+
+  HistogramSnapshot getFailureFilingTime( );
+
+  HistogramSnapshot getDocumentSize( );
+
+  HistogramSnapshot getChildFanout( );
+
+  void reset( );
+}
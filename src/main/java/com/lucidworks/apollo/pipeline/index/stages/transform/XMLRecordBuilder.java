@@ -0,0 +1,350 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import com.modinfodesigns.property.IDataObjectBuilder;
+import com.modinfodesigns.property.DataObject;
+import com.modinfodesigns.property.PropertyValidationException;
+import com.modinfodesigns.property.string.StringProperty;
+import com.modinfodesigns.property.string.StringListProperty;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+
+import java.util.ArrayList;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reusable XML DataObject builder. Creates the same DataObjects as XMLParserTransform - elements become DataObjects
+ * named by the element, attributes become StringProperties and non blank text is collected in a 'text'
+ * StringListProperty - but keeps its SAXParser and handler between documents instead of creating a new
+ * SAXParserFactory, parser and handler for every record.
+ *
+ * Given a projecting FieldMappingPlan, child elements of the record element that the plan does not need are skipped
+ * with everything below them. Elements that are needed are built whole - XML records are not pruned any deeper.
+ *
+ * Not thread safe - each thread uses its own instance (see ParserPool).
+ */
+final class XMLRecordBuilder implements IDataObjectBuilder {
+  private transient static final Logger LOG = LoggerFactory.getLogger( XMLRecordBuilder.class );
+
+  private final SAXParserFactory parserFactory = SAXParserFactory.newInstance( );
+  private SAXParser saxParser;
+  private final RecordHandler handler = new RecordHandler( );
+  private final AttributesImpl attributes = new AttributesImpl( );
+
+  @Override
+  public DataObject createDataObject( String xmlString ) {
+    return createDataObject( new InputSource( new StringReader( xmlString ) ), null );
+  }
+
+  /**
+   * Parses a record. As with XMLParserTransform, parse errors are logged and whatever was built up to the error is
+   * returned - null if the root element was not reached.
+   */
+  DataObject createDataObject( Reader reader ) {
+    return createDataObject( new InputSource( reader ), null );
+  }
+
+  /**
+   * Parses a record from its bytes - the encoding comes from the XML declaration, UTF-8 by default.
+   */
+  DataObject createDataObject( InputStream in ) {
+    return createDataObject( new InputSource( in ), null );
+  }
+
+  /**
+   * Parses the members of a record that a projecting plan needs.
+   */
+  DataObject createDataObject( String xmlString, FieldMappingPlan projection ) {
+    return createDataObject( new InputSource( new StringReader( xmlString ) ), projection );
+  }
+
+  DataObject createDataObject( InputStream in, FieldMappingPlan projection ) {
+    return createDataObject( new InputSource( in ), projection );
+  }
+
+  private DataObject createDataObject( InputSource source, FieldMappingPlan projection ) {
+    handler.projection = projection;
+    try {
+      if (saxParser == null) {
+        saxParser = parserFactory.newSAXParser( );
+      }
+      saxParser.parse( source, handler );
+    }
+    catch ( Exception e ) {
+      LOG.error( "Got Exception: " + e );
+      // start over with a fresh parser after an error
+      saxParser = null;
+    }
+    finally {
+      if (saxParser != null) {
+        saxParser.reset( );
+      }
+    }
+    return handler.release( );
+  }
+
+  /**
+   * Builds the DataObject of the element that reader is positioned on (a START_ELEMENT) from its StAX events and
+   * leaves the reader on the matching END_ELEMENT. Used to split large XML files into records without serializing
+   * them. Names and namespace declarations are reported with their prefixes, as the (non namespace aware) SAX
+   * parse does; the reader should coalesce text so that each text node becomes one 'text' entry.
+   */
+  DataObject readRecord( XMLStreamReader reader, FieldMappingPlan projection ) throws XMLStreamException {
+    return readRecord( reader, projection, null );
+  }
+
+  /**
+   * Like readRecord( reader, projection ), and writes the record element as XML text to xml (if not null) - a
+   * document that createDataObject( String ) builds the same record from.
+   */
+  DataObject readRecord( XMLStreamReader reader, FieldMappingPlan projection, StringBuilder xml ) throws XMLStreamException {
+    handler.startDocument( );
+    handler.projection = projection;
+    try {
+      int depth = 0;
+      while (true) {
+        switch (reader.getEventType( )) {
+          case XMLStreamConstants.START_ELEMENT:
+            ++depth;
+            if (xml != null) appendStartTag( xml, reader );
+            handler.startElement( null, null, qName( reader.getPrefix( ), reader.getLocalName( ) ),
+                                  (handler.isSkipping( )) ? null : getAttributes( reader ) );
+            break;
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.CDATA:
+          case XMLStreamConstants.SPACE:
+            if (xml != null) appendText( xml, reader.getTextCharacters( ), reader.getTextStart( ), reader.getTextLength( ) );
+            handler.characters( reader.getTextCharacters( ), reader.getTextStart( ), reader.getTextLength( ) );
+            break;
+          case XMLStreamConstants.END_ELEMENT:
+            --depth;
+            if (xml != null) xml.append( "</" ).append( qName( reader.getPrefix( ), reader.getLocalName( ) ) ).append( '>' );
+            handler.endElement( null, null, qName( reader.getPrefix( ), reader.getLocalName( ) ) );
+            break;
+          default:
+            break;
+        }
+        if (depth == 0) {
+          return handler.release( );
+        }
+        reader.next( );
+      }
+    }
+    catch ( XMLStreamException e ) {
+      handler.release( );
+      throw e;
+    }
+  }
+
+  private Attributes getAttributes( XMLStreamReader reader ) {
+    attributes.clear( );
+    for (int i = 0, len = reader.getNamespaceCount( ); i < len; i++) {
+      String prefix = reader.getNamespacePrefix( i );
+      String name = (prefix == null || prefix.isEmpty( )) ? "xmlns" : "xmlns:" + prefix;
+      attributes.addAttribute( "", "", name, "CDATA", reader.getNamespaceURI( i ) );
+    }
+    for (int i = 0, len = reader.getAttributeCount( ); i < len; i++) {
+      String name = qName( reader.getAttributePrefix( i ), reader.getAttributeLocalName( i ) );
+      attributes.addAttribute( "", "", name, "CDATA", reader.getAttributeValue( i ) );
+    }
+    return attributes;
+  }
+
+  private static void appendStartTag( StringBuilder xml, XMLStreamReader reader ) {
+    xml.append( '<' ).append( qName( reader.getPrefix( ), reader.getLocalName( ) ) );
+    for (int i = 0, len = reader.getNamespaceCount( ); i < len; i++) {
+      String prefix = reader.getNamespacePrefix( i );
+      appendAttribute( xml, (prefix == null || prefix.isEmpty( )) ? "xmlns" : "xmlns:" + prefix, reader.getNamespaceURI( i ) );
+    }
+    for (int i = 0, len = reader.getAttributeCount( ); i < len; i++) {
+      appendAttribute( xml, qName( reader.getAttributePrefix( i ), reader.getAttributeLocalName( i ) ), reader.getAttributeValue( i ) );
+    }
+    xml.append( '>' );
+  }
+
+  private static void appendAttribute( StringBuilder xml, String name, String value ) {
+    xml.append( ' ' ).append( name ).append( "=\"" );
+    if (value != null) {
+      appendEscaped( xml, value.toCharArray( ), 0, value.length( ), true );
+    }
+    xml.append( '"' );
+  }
+
+  // text with markup characters is written as CDATA - a SAX parser reports it as one text node then, as it was read
+  // (unless the text contains ']]>', which has to end one CDATA section)
+  private static void appendText( StringBuilder xml, char[] ch, int start, int length ) {
+    boolean markup = false;
+    for (int i = start, end = start + length; i < end && !markup; i++) {
+      markup = (ch[i] == '<' || ch[i] == '&');
+    }
+    if (!markup) {
+      appendEscaped( xml, ch, start, length, false );
+      return;
+    }
+    xml.append( "<![CDATA[" );
+    for (int i = start, end = start + length; i < end; i++) {
+      xml.append( ch[i] );
+      if (ch[i] == '>' && i >= start + 2 && ch[i - 1] == ']' && ch[i - 2] == ']') {
+        // ]]> ends a CDATA section
+        xml.setLength( xml.length( ) - 1 );
+        xml.append( "]]><![CDATA[>" );
+      }
+    }
+    xml.append( "]]>" );
+  }
+
+  // attribute values keep their whitespace characters - the parser would normalize them to spaces
+  private static void appendEscaped( StringBuilder xml, char[] ch, int start, int length, boolean attribute ) {
+    for (int i = start, end = start + length; i < end; i++) {
+      char c = ch[i];
+      switch (c) {
+        case '&': xml.append( "&amp;" ); break;
+        case '<': xml.append( "&lt;" ); break;
+        case '>': xml.append( "&gt;" ); break;
+        case '"': xml.append( (attribute) ? "&quot;" : "\"" ); break;
+        case '\n': xml.append( (attribute) ? "&#10;" : "\n" ); break;
+        case '\r': xml.append( "&#13;" ); break;
+        case '\t': xml.append( (attribute) ? "&#9;" : "\t" ); break;
+        default: xml.append( c );
+      }
+    }
+  }
+
+  private static String qName( String prefix, String localName ) {
+    return (prefix == null || prefix.isEmpty( )) ? localName : prefix + ":" + localName;
+  }
+
+  /**
+   * SAX handler with the element nesting rules of XMLParserTransform. Its parent stack is kept between documents.
+   *
+   * A skipped child of the record element leaves the handler in the state it was in before the child started, so
+   * skipping its events builds the record without it.
+   */
+  private static final class RecordHandler extends DefaultHandler {
+    private final ArrayList<DataObject> parentStack = new ArrayList<DataObject>( );
+    private DataObject rootObj;
+    private DataObject currObject;
+    private String currParentName;
+    private FieldMappingPlan projection;
+    private int depth;
+    private int skipDepth; // depth of the element being skipped, 0 = none
+
+    @Override
+    public void startDocument( ) {
+      parentStack.clear( );
+      rootObj = null;
+      currObject = null;
+      currParentName = null;
+      depth = 0;
+      skipDepth = 0;
+    }
+
+    boolean isSkipping( ) {
+      return skipDepth > 0;
+    }
+
+    @Override
+    public void startElement( String uri, String localName, String qName, Attributes attributes ) {
+      ++depth;
+      if (skipDepth > 0) return;
+      if (depth == 2 && projection != null && projection.project( qName ) == null) {
+        skipDepth = depth;
+        return;
+      }
+
+      currObject = new DataObject( );
+      currObject.setName( qName );
+      if (rootObj == null) {
+        rootObj = currObject;
+      }
+      parentStack.add( currObject );
+      currParentName = qName;
+
+      if (attributes != null) {
+        for (int i = 0, len = attributes.getLength( ); i < len; i++) {
+          StringProperty attr = new StringProperty( );
+          attr.setName( attributes.getQName( i ) );
+          try {
+            attr.setValue( attributes.getValue( i ), null );
+            currObject.addProperty( attr );
+          }
+          catch ( PropertyValidationException pve ) {
+            // not added - same as XMLParserTransform
+          }
+        }
+      }
+    }
+
+    @Override
+    public void characters( char[] ch, int start, int length ) {
+      if (skipDepth > 0 || isBlank( ch, start, length )) return;
+
+      StringListProperty text = (StringListProperty)currObject.getProperty( "text" );
+      if (text == null) {
+        text = new StringListProperty( );
+        text.setName( "text" );
+        currObject.addProperty( text );
+      }
+      text.addString( new String( ch, start, length ) );
+    }
+
+    @Override
+    public void endElement( String uri, String localName, String qName ) {
+      if (skipDepth > 0) {
+        if (depth-- == skipDepth) {
+          skipDepth = 0;
+        }
+        return;
+      }
+      --depth;
+
+      DataObject lastParent = peek( );
+      if (lastParent != null && currParentName != null && currParentName.equals( qName )) {
+        parentStack.remove( parentStack.size( ) - 1 );
+        lastParent = peek( );
+        currParentName = (lastParent != null) ? lastParent.getName( ) : null;
+      }
+
+      if (currObject != null && lastParent != null) {
+        lastParent.addProperty( currObject );
+      }
+      currObject = lastParent;
+    }
+
+    // hands out the record and drops all references to it
+    DataObject release( ) {
+      DataObject record = rootObj;
+      parentStack.clear( );
+      rootObj = null;
+      currObject = null;
+      currParentName = null;
+      projection = null;
+      return record;
+    }
+
+    private DataObject peek( ) {
+      return (parentStack.isEmpty( )) ? null : parentStack.get( parentStack.size( ) - 1 );
+    }
+
+    private static boolean isBlank( char[] ch, int start, int length ) {
+      for (int i = start, end = start + length; i < end; i++) {
+        if (ch[i] > ' ') return false;
+      }
+      return true;
+    }
+  }
+}
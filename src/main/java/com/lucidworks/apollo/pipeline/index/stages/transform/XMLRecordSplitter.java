@@ -0,0 +1,103 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import com.modinfodesigns.property.DataObject;
+
+import java.io.InputStream;
+
+import java.util.ArrayList;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Splits an XML stream into records with StAX: every element that matches the record path becomes one DataObject
+ * (built by XMLRecordBuilder), everything outside of records is skipped. Only the current element path and one
+ * record are held in memory.
+ *
+ * Record paths are simple element paths (see ElementPath) - a relative path matches at any depth. No path means
+ * every child of the document element. Records do not nest: an element that matches inside of a record (//item
+ * in an item) is read as part of the outer record - XMLRecordStream returns it as a record of its own as well.
+ *
+ * If asked to keep record text, the XML of the last record read is kept - for filing a record that fails.
+ */
+final class XMLRecordSplitter {
+
+  private final XMLStreamReader reader;
+  private final XMLRecordBuilder builder;
+  private final FieldMappingPlan projection;
+  private final ElementPath recordPath;
+  private final ArrayList<String> path = new ArrayList<String>( );
+  private final StringBuilder recordText;
+
+  /**
+   * @param projection a projecting plan for the members of the records, null to build whole records
+   * @param keepRecordText true to keep the XML of each record for getRecordText( )
+   */
+  XMLRecordSplitter( InputStream in, String recordPath, XMLRecordBuilder builder, FieldMappingPlan projection,
+                     boolean keepRecordText ) throws XMLStreamException {
+    XMLInputFactory factory = XMLInputFactory.newInstance( );
+    factory.setProperty( XMLInputFactory.IS_COALESCING, Boolean.TRUE );
+    factory.setProperty( XMLInputFactory.SUPPORT_DTD, Boolean.FALSE );
+    factory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE );
+    this.reader = factory.createXMLStreamReader( in );
+    this.builder = builder;
+    this.projection = projection;
+    this.recordText = (keepRecordText) ? new StringBuilder( ) : null;
+
+    if (recordPath == null || recordPath.trim( ).isEmpty( )) {
+      recordPath = "/*/*";
+    }
+    try {
+      // a relative path matches at any depth
+      this.recordPath = ElementPath.compile( recordPath, true );
+    }
+    catch ( IllegalArgumentException iae ) {
+      throw new XMLStreamException( "Record path '" + recordPath + "' is not a simple element path" );
+    }
+  }
+
+  /**
+   * @return the next record or null at the end of the document.
+   */
+  DataObject next( ) throws XMLStreamException {
+    while (reader.hasNext( )) {
+      int event = reader.next( );
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        String name = reader.getLocalName( );
+        String prefix = reader.getPrefix( );
+        path.add( (prefix == null || prefix.isEmpty( )) ? name : prefix + ":" + name );
+        if (recordPath.matches( path )) {
+          // the reader is left on the record's END_ELEMENT
+          if (recordText != null) recordText.setLength( 0 );
+          DataObject record = builder.readRecord( reader, projection, recordText );
+          path.remove( path.size( ) - 1 );
+          return record;
+        }
+      }
+      else if (event == XMLStreamConstants.END_ELEMENT) {
+        path.remove( path.size( ) - 1 );
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the XML of the last record read, null if record text is not kept.
+   */
+  String getRecordText( ) {
+    return (recordText != null) ? recordText.toString( ) : null;
+  }
+
+  /**
+   * @return the character offset of the reader, -1 if the parser does not know it.
+   */
+  int getCharacterOffset( ) {
+    return (reader.getLocation( ) != null) ? reader.getLocation( ).getCharacterOffset( ) : -1;
+  }
+
+  void close( ) throws XMLStreamException {
+    reader.close( );
+  }
+}
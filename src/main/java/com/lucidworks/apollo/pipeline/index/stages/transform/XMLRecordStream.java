@@ -0,0 +1,156 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import java.io.Reader;
+
+import java.util.ArrayList;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+
+/**
+ * Splits an XML stream into records with StAX for XMLTransformStage: every element that matches the record path
+ * becomes a Document of its own with the record element as document element - the DOM that parsing the serialized
+ * record with a (not namespace aware) DocumentBuilder gives. Only the open records are held in memory.
+ *
+ * Records are returned in document order. A record inside of another record (//record) is returned after the outer
+ * one, as an XPath node set would list them.
+ *
+ * Documents with a DTD are not streamed: entities and default attributes are left to the DocumentBuilder.
+ * next( ) returns null at the DTD and hasDTD( ) is true - this happens before any record is returned.
+ */
+final class XMLRecordStream {
+
+  private final XMLStreamReader reader;
+  private final ElementPath recordPath;
+  private final DocumentBuilder builder;
+  private final ArrayList<String> path = new ArrayList<String>( );
+  private boolean dtd;
+
+  // records being read, in document order - completed ones wait for the records that enclose them
+  private final ArrayList<Record> records = new ArrayList<Record>( );
+
+  private static final class Record {
+    final Document document;
+    final int depth;  // path size at the record element
+    Node current;
+    boolean complete;
+
+    Record( Document document, int depth ) {
+      this.document = document;
+      this.depth = depth;
+      this.current = document;
+    }
+  }
+
+  XMLRecordStream( Reader in, ElementPath recordPath, DocumentBuilder builder ) throws XMLStreamException {
+    this.reader = DocumentBuilderPool.getInputFactory( ).createXMLStreamReader( in );
+    this.recordPath = recordPath;
+    this.builder = builder;
+  }
+
+  /**
+   * @return the next record or null at the end of the document (or at a DTD).
+   */
+  Document next( ) throws XMLStreamException {
+    while (true) {
+      if (!records.isEmpty( ) && records.get( 0 ).complete) {
+        return records.remove( 0 ).document;
+      }
+      if (!reader.hasNext( )) return null;
+
+      int event = reader.next( );
+      switch (event) {
+        case XMLStreamConstants.DTD:
+          dtd = true;
+          return null;
+
+        case XMLStreamConstants.START_ELEMENT:
+          String name = qualifiedName( reader.getPrefix( ), reader.getLocalName( ) );
+          path.add( name );
+          if (recordPath.matches( path )) {
+            records.add( new Record( builder.newDocument( ), path.size( ) ) );
+          }
+          for (Record record : records ) {
+            if (record.complete) continue;
+            Element element = record.document.createElement( name );
+            for (int i = 0; i < reader.getAttributeCount( ); i++) {
+              element.setAttribute( qualifiedName( reader.getAttributePrefix( i ), reader.getAttributeLocalName( i ) ),
+                                    reader.getAttributeValue( i ) );
+            }
+            record.current.appendChild( element );
+            record.current = element;
+          }
+          break;
+
+        case XMLStreamConstants.END_ELEMENT:
+          for (Record record : records ) {
+            if (record.complete) continue;
+            record.current = record.current.getParentNode( );
+            if (path.size( ) == record.depth) {
+              record.complete = true;
+            }
+          }
+          path.remove( path.size( ) - 1 );
+          break;
+
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.SPACE:
+          for (Record record : records ) {
+            if (record.complete) continue;
+            // the DocumentBuilder gives one Text node for adjacent character data
+            Node last = record.current.getLastChild( );
+            if (last != null && last.getNodeType( ) == Node.TEXT_NODE) {
+              ((Text)last).appendData( reader.getText( ) );
+            }
+            else {
+              record.current.appendChild( record.document.createTextNode( reader.getText( ) ) );
+            }
+          }
+          break;
+
+        case XMLStreamConstants.CDATA:
+          for (Record record : records ) {
+            if (record.complete) continue;
+            record.current.appendChild( record.document.createCDATASection( reader.getText( ) ) );
+          }
+          break;
+
+        case XMLStreamConstants.COMMENT:
+          for (Record record : records ) {
+            if (record.complete) continue;
+            record.current.appendChild( record.document.createComment( reader.getText( ) ) );
+          }
+          break;
+
+        case XMLStreamConstants.PROCESSING_INSTRUCTION:
+          for (Record record : records ) {
+            if (record.complete) continue;
+            record.current.appendChild( record.document.createProcessingInstruction( reader.getPITarget( ),
+                                                                                       reader.getPIData( ) ) );
+          }
+          break;
+
+        default:
+      }
+    }
+  }
+
+  boolean hasDTD( ) {
+    return dtd;
+  }
+
+  void close( ) throws XMLStreamException {
+    reader.close( );
+  }
+
+  private static String qualifiedName( String prefix, String localName ) {
+    return (prefix == null || prefix.isEmpty( )) ? localName : prefix + ":" + localName;
+  }
+}
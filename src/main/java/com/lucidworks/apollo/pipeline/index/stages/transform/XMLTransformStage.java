@@ -23,7 +23,6 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
 import javax.xml.transform.Transformer;
@@ -31,16 +30,18 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathFactory;
 import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
 
 import java.io.ByteArrayInputStream;
 import java.io.StringWriter;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
 
 @Stage
 public class XMLTransformStage extends IndexStage<XMLTransformConfig> {
@@ -48,129 +49,337 @@ public class XMLTransformStage extends IndexStage<XMLTransformConfig> {
 
   public static final String RESOURCE_SEPARATOR = "#";
     
+  // records per fork-join task when records are mapped in parallel
+  private static final int RECORD_BATCH = 32;
+    
+  // metrics of the current config
+  private volatile StageMetrics metrics;
+    
+  // compiled XPaths of the current config - XPathExpressions are not thread safe
+  private final ThreadLocal<XPathMappingPlan> mappingPlans = new ThreadLocal<XPathMappingPlan>( );
+    
+  // identity Transformers for saveAsXML values - not thread safe either
+  private final ThreadLocal<Transformer> serializers = new ThreadLocal<Transformer>( );
+    
   @Override
   public void process( PipelineDocument pipelineDoc, PipelineContext pipelineContext, XMLTransformConfig config,
                        PipelineCollector<PipelineDocument> collector, StageCallback<PipelineDocument> callback )
                                    throws Exception {
                                        
-    Log.info( "process ..." );
+    // Log.debug( "process ..." );
+    StageMetrics metrics = getMetrics( config );
     int doc_n = 0;
+    int nRecords = 0;
+    long childNanos = 0;
                                        
-    String rootXPath = config.getRootXPath( );
-    Log.info( "Using root XPath = " + rootXPath );
-    XPath xPath =  XPathFactory.newInstance().newXPath();
-    XPathExpression nodeExpr = xPath.compile( rootXPath );
-                                       
-    List<XPathMappingRule> xpathMappings = config.getMappings();
-    List<AdditionalMetadata> additionalMetadata = config.getMetadata();
+    // Log.debug( "Using root XPath = " + config.getRootXPath( ) );
+    XPathMappingPlan plan = getMappingPlan( config );
+    XPathExpression nodeExpr = plan.getRoot( );
                                        
     boolean keepParentDoc = config.isKeepParent( );
-    String subDocField = (keepParentDoc) ? config.getSubDocumentField( ) : null;
                                        
-    DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
 
     List<PipelineField> xmlFields = pipelineDoc.getFields( config.getBodyField( ) );
+    long docChars = 0;
     if ( xmlFields != null ) {
       for ( PipelineField xmlField : xmlFields ) {
-        Object fieldVal = xmlField.getValue();
+        docChars += xmlField.getValue( ).toString( ).length( );
+      }
+    }
+    metrics.received( docChars );
+      
+    try {
+      if ( xmlFields != null ) {
+        for ( PipelineField xmlField : xmlFields ) {
+          Object fieldVal = xmlField.getValue();
         
-        // check if body is XML...
-        String xmlStr = fieldVal.toString( ).trim( );
-        if (xmlStr.trim().startsWith( "<?xml" ) || ( xmlStr.startsWith( "<" ) && xmlStr.endsWith( ">" )) ) {
+          // check if body is XML...
+          String xmlStr = fieldVal.toString( ).trim( );
+          if (xmlStr.trim().startsWith( "<?xml" ) || ( xmlStr.startsWith( "<" ) && xmlStr.endsWith( ">" )) ) {
           
-          try {
-            DocumentBuilder builder = builderFactory.newDocumentBuilder();
-            Document xmlDocument = builder.parse( new ByteArrayInputStream( xmlStr.getBytes() ) );
-            NodeList nodes = (NodeList)nodeExpr.evaluate( xmlDocument, XPathConstants.NODESET );
-            Log.info( "Got " + nodes.getLength() + " nodes" );
+            try {
+              long parseStart = System.nanoTime( );
+              DocumentBuilder builder = DocumentBuilderPool.getDocumentBuilder( config.isNamespaceAware( ),
+                                                                                config.shouldIgnoreWhitespace( ) );
               
-            for (int i = 0; i < nodes.getLength(); i++) {
-              Node node = nodes.item( i );
-              Document subDoc = builder.parse( new ByteArrayInputStream( getText( node ).getBytes() ) );
-                
-              PipelineDocument pDoc = (!keepParentDoc || subDocField != null) ? new PipelineDocument( pipelineDoc ) : pipelineDoc;
-
-              for ( XPathMappingRule xpathRule : xpathMappings ) {
-                Log.info( "evaluating '" + xpathRule.getXpath( ) + "'" );
-                XPathExpression valExpr = xPath.compile( xpathRule.getXpath( ) );
-              
-                String fieldname = xpathRule.getField( );
-                if (fieldname != null && fieldname.startsWith( "/" )) {
-                  XPathExpression fieldExpr = xPath.compile( fieldname );
-                  // for each subDoc
-                  NodeList fieldNodes = (NodeList)fieldExpr.evaluate( subDoc, XPathConstants.NODESET );
-                  NodeList textNodes  = (NodeList)valExpr.evaluate( subDoc, XPathConstants.NODESET );
-                  for (int n = 0; n < fieldNodes.getLength() && n < textNodes.getLength(); n++) {
-                    Node fieldN = fieldNodes.item( n );
-                    Node textN  = textNodes.item( n );
-                    String fld = fieldN.getTextContent();
-                    fld = fld.replace( " ", "_" );
-                    fld = fld.replace( ":", "." );
-                    fld = fld.replace( "/", "." );
-                    fld = fld + xpathRule.getFieldSuffix( );
+              if (plan.getRecordPath( ) != null) {
+                // the body is read as the String it is - no encoded copy, no platform charset
+                XMLRecordStream records = new XMLRecordStream( new StringReader( xmlStr ), plan.getRecordPath( ), builder );
+                try {
+                  Document subDoc = records.next( );
+                  if (!records.hasDTD( )) {
+                    // one record in memory at a time
+                    long parseNanos = System.nanoTime( ) - parseStart;
+                    while (subDoc != null) {
+                      long mapStart = System.nanoTime( );
+                      PipelineDocument pDoc = mapRecord( pipelineDoc, subDoc, plan, config );
+                      long childStart = System.nanoTime( );
+                      metrics.mapped( childStart - mapStart );
+                      emitRecord( pipelineDoc, pDoc, doc_n++, config, collector );
+                      childNanos += System.nanoTime( ) - childStart;
+                      ++nRecords;
                       
-                    pDoc.addField( fld, textN.getTextContent( ) );
+                      long readStart = System.nanoTime( );
+                      subDoc = records.next( );
+                      parseNanos += System.nanoTime( ) - readStart;
+                    }
+                    metrics.parsed( parseNanos );
+                    continue;
                   }
-                
                 }
-                else {
-                  if ( xpathRule.getSaveAsXML( ) ) {
-                    NodeList subnodes = (NodeList)valExpr.evaluate( subDoc, XPathConstants.NODESET );
-                    for (int n = 0; n < subnodes.getLength(); n++) {
-                      Node subnode = subnodes.item( n );
-                      String value = getText( subnode );
-                      Log.info( "addField: " + fieldname + " = '" + value + "'" );
-                      pDoc.addField( fieldname, value );
-                    }
+                finally {
+                  records.close( );
+                }
+              }
+              
+              Document xmlDocument = builder.parse( new ByteArrayInputStream( xmlStr.getBytes() ) );
+              NodeList nodes = (NodeList)nodeExpr.evaluate( xmlDocument, XPathConstants.NODESET );
+              metrics.parsed( System.nanoTime( ) - parseStart );
+              // Log.debug( "Got " + nodes.getLength() + " nodes" );
+              
+              if (isParallel( config, nodes.getLength( ) )) {
+                // the DOM of the body is not thread safe - records are copied out of it before they are mapped
+                Document[] subDocs = new Document[ nodes.getLength( ) ];
+                Exception[] errors = new Exception[ subDocs.length ];
+                int n = 0;
+                while (n < subDocs.length) {
+                  try {
+                    subDocs[n] = getRecordDocument( builder, xmlDocument, nodes.item( n ) );
+                    ++n;
                   }
-                  else {
-                    Log.info( "getting text: " + getText( node ));
-                    List<String> values = getValues( subDoc, valExpr );
-                    for (String val : values ) {
-                      pDoc.addField( fieldname, val );
-                    }
+                  catch ( Exception e ) {
+                    errors[n++] = e;
+                    break;
                   }
                 }
-              }
                 
-              if (additionalMetadata != null) {
-                for (AdditionalMetadata fieldval : additionalMetadata ) {
-                  pDoc.addField( fieldval.getField(), fieldval.getValue() );
-                }
-              }
+                PipelineDocument[] pDocs = new PipelineDocument[ n ];
+                WorkerPool.POOL.invoke( new RecordTask( pipelineDoc, subDocs, pDocs, errors, config, 0, n ) );
                 
-              if (!keepParentDoc || subDocField != null) {
-                String parentID = pipelineDoc.getId( );
-                String recID = parentID + RESOURCE_SEPARATOR + Integer.toString( doc_n++ );
-                pDoc.setId( recID );
-                    
-                if (config.getParentIdField() != null) {
-                  pDoc.addField( config.getParentIdField( ), parentID );
+                // in document order, up to the first record that failed
+                for (int i = 0; i < n; i++) {
+                  if (errors[i] != null) throw errors[i];
+                  long childStart = System.nanoTime( );
+                  emitRecord( pipelineDoc, pDocs[i], doc_n++, config, collector );
+                  childNanos += System.nanoTime( ) - childStart;
+                  ++nRecords;
                 }
+                continue;
               }
               
-              if ( !keepParentDoc ) {
-                collector.write( pDoc );
-              }
-              else if ( subDocField != null ) {
-                pipelineDoc.addField( subDocField, pDoc );
+              for (int i = 0; i < nodes.getLength(); i++) {
+                Node node = nodes.item( i );
+                long mapStart = System.nanoTime( );
+                Document subDoc = getRecordDocument( builder, xmlDocument, node );
+                PipelineDocument pDoc = mapRecord( pipelineDoc, subDoc, plan, config );
+                long childStart = System.nanoTime( );
+                metrics.mapped( childStart - mapStart );
+                emitRecord( pipelineDoc, pDoc, doc_n++, config, collector );
+                childNanos += System.nanoTime( ) - childStart;
+                ++nRecords;
               }
             }
+            catch (ParserConfigurationException e) {
+              throw new Exception( e.getMessage( ) );
+            }
           }
-          catch (ParserConfigurationException e) {
-            throw new Exception( e.getMessage( ) );
+        }
+      }
+      metrics.childrenEmitted( childNanos, nRecords );
+
+      if ( keepParentDoc ) {
+        if ( config.shouldCleanupXML( ) ) {
+          pipelineDoc.removeFields( config.getBodyField() );
+        }
+        collector.write( pipelineDoc );
+      }
+      metrics.processed( );
+    }
+    catch ( Exception e ) {
+      metrics.failed( );
+      throw e;
+    }
+  }
+    
+  /**
+   * Applies the mapping rules and the additional metadata of a config to the Document of one record.
+   *
+   * @return the PipelineDocument of the record - the parent if it is kept and records are not sub documents.
+   */
+  private PipelineDocument mapRecord( PipelineDocument pipelineDoc, Document subDoc, XPathMappingPlan plan,
+                                      XMLTransformConfig config ) throws Exception {
+    boolean keepParentDoc = config.isKeepParent( );
+    String subDocField = (keepParentDoc) ? config.getSubDocumentField( ) : null;
+    PipelineDocument pDoc = (!keepParentDoc || subDocField != null) ? new PipelineDocument( pipelineDoc ) : pipelineDoc;
+
+    for ( XPathMappingPlan.Rule compiledRule : plan.getRules( ) ) {
+      XPathMappingRule xpathRule = compiledRule.rule;
+      // Log.debug( "evaluating '" + xpathRule.getXpath( ) + "'" );
+  
+      String fieldname = xpathRule.getField( );
+      if (compiledRule.field != null) {
+        // for each subDoc
+        NodeList fieldNodes = compiledRule.getFieldNodes( subDoc );
+        NodeList textNodes  = compiledRule.getValueNodes( subDoc );
+        for (int n = 0; n < fieldNodes.getLength() && n < textNodes.getLength(); n++) {
+          Node fieldN = fieldNodes.item( n );
+          Node textN  = textNodes.item( n );
+          String fld = fieldN.getTextContent();
+          fld = fld.replace( " ", "_" );
+          fld = fld.replace( ":", "." );
+          fld = fld.replace( "/", "." );
+          fld = fld + xpathRule.getFieldSuffix( );
+          
+          pDoc.addField( fld, textN.getTextContent( ) );
+        }
+    
+      }
+      else {
+        if ( xpathRule.getSaveAsXML( ) ) {
+          NodeList subnodes = compiledRule.getValueNodes( subDoc );
+          for (int n = 0; n < subnodes.getLength(); n++) {
+            Node subnode = subnodes.item( n );
+            String value = getText( subnode );
+            // Log.debug( "addField: " + fieldname + " = '" + value + "'" );
+            pDoc.addField( fieldname, value );
+          }
+        }
+        else {
+          List<String> values = getValues( subDoc, compiledRule );
+          for (String val : values ) {
+            pDoc.addField( fieldname, val );
           }
         }
       }
     }
+    
+    List<AdditionalMetadata> additionalMetadata = config.getMetadata();
+    if (additionalMetadata != null) {
+      for (AdditionalMetadata fieldval : additionalMetadata ) {
+        pDoc.addField( fieldval.getField(), fieldval.getValue() );
+      }
+    }
+    return pDoc;
+  }
 
-    if ( keepParentDoc ) {
-      if ( config.shouldCleanupXML( ) ) {
-        pipelineDoc.removeFields( config.getBodyField() );
+  /**
+   * Records are mapped in parallel if there are at least parallelRecordThreshold of them and they are written to
+   * the collector. Records that are added to the parent depend on each other: each one starts from a copy of the
+   * parent with the sub documents of the records before it.
+   */
+  private boolean isParallel( XMLTransformConfig config, int nRecords ) {
+    int threshold = config.getParallelRecordThreshold( );
+    return threshold > 0 && nRecords >= threshold && !config.isKeepParent( );
+  }
+    
+  /**
+   * Maps the records of a range, splitting ranges longer than RECORD_BATCH. Each worker thread uses its own
+   * XPathMappingPlan. The exception of a record that fails is kept for the calling thread.
+   */
+  @SuppressWarnings( "serial" )
+  private final class RecordTask extends RecursiveAction {
+    private final PipelineDocument parent;
+    private final Document[] subDocs;
+    private final PipelineDocument[] pDocs;
+    private final Exception[] errors;
+    private final XMLTransformConfig config;
+    private final int from;
+    private final int to;
+      
+    RecordTask( PipelineDocument parent, Document[] subDocs, PipelineDocument[] pDocs, Exception[] errors,
+                XMLTransformConfig config, int from, int to ) {
+      this.parent = parent;
+      this.subDocs = subDocs;
+      this.pDocs = pDocs;
+      this.errors = errors;
+      this.config = config;
+      this.from = from;
+      this.to = to;
+    }
+      
+    @Override
+    protected void compute( ) {
+      if (to - from <= RECORD_BATCH) {
+        StageMetrics metrics = getMetrics( config );
+        for (int i = from; i < to; i++) {
+          if (subDocs[i] == null) continue;
+          try {
+            long mapStart = System.nanoTime( );
+            pDocs[i] = mapRecord( parent, subDocs[i], getMappingPlan( config ), config );
+            metrics.mapped( System.nanoTime( ) - mapStart );
+          }
+          catch ( Exception e ) {
+            errors[i] = e;
+          }
+        }
+      }
+      else {
+        int mid = (from + to) >>> 1;
+        invokeAll( new RecordTask( parent, subDocs, pDocs, errors, config, from, mid ),
+                   new RecordTask( parent, subDocs, pDocs, errors, config, mid, to ) );
+      }
+    }
+  }
+    
+  // maps the records of large bodies - shared by all stage instances, created on first use
+  private static final class WorkerPool {
+    static final ForkJoinPool POOL = new ForkJoinPool( Runtime.getRuntime( ).availableProcessors( ),
+                                                       new ForkJoinPool.ForkJoinWorkerThreadFactory( ) {
+      @Override
+      public ForkJoinWorkerThread newThread( ForkJoinPool pool ) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread( pool );
+        thread.setName( "xml-transform-worker-" + thread.getPoolIndex( ) );
+        return thread;
+      }
+    }, null, false );
+  }
+    
+  /**
+   * Writes the PipelineDocument of the doc_n'th record to the collector or adds it to the sub document field of
+   * the parent.
+   */
+  private void emitRecord( PipelineDocument pipelineDoc, PipelineDocument pDoc, int doc_n, XMLTransformConfig config,
+                           PipelineCollector<PipelineDocument> collector ) {
+    boolean keepParentDoc = config.isKeepParent( );
+    String subDocField = (keepParentDoc) ? config.getSubDocumentField( ) : null;
+    if (!keepParentDoc || subDocField != null) {
+      String parentID = pipelineDoc.getId( );
+      String recID = parentID + RESOURCE_SEPARATOR + Integer.toString( doc_n );
+      pDoc.setId( recID );
+        
+      if (config.getParentIdField() != null) {
+        pDoc.addField( config.getParentIdField( ), parentID );
       }
-      collector.write( pipelineDoc );
+    }
+  
+    if ( !keepParentDoc ) {
+      collector.write( pDoc );
+    }
+    else if ( subDocField != null ) {
+      pipelineDoc.addField( subDocField, pDoc );
     }
   }
+    
+  /**
+   * @return the metrics of a config of this stage - see StageMetrics for JMX access to all stage metrics.
+   */
+  public StageMetrics getMetrics( XMLTransformConfig config ) {
+    StageMetrics metrics = this.metrics;
+    if (metrics == null || !metrics.isFor( config.getId( ) )) {
+      metrics = StageMetrics.get( getClass( ).getSimpleName( ), config.getId( ) );
+      this.metrics = metrics;
+    }
+    return metrics;
+  }
+
+  private XPathMappingPlan getMappingPlan( XMLTransformConfig config ) throws XPathExpressionException {
+    XPathMappingPlan plan = mappingPlans.get( );
+    if (plan == null || !plan.isCompiledFrom( config )) {
+      plan = XPathMappingPlan.compile( config );
+      mappingPlans.set( plan );
+    }
+    return plan;
+  }
 
   @Override
   public Class<XMLTransformConfig> getStageConfigClass() {
@@ -178,19 +387,37 @@ public class XMLTransformStage extends IndexStage<XMLTransformConfig> {
   }
 
     
+  /**
+   * @return a Document with a copy of the node matched by the root XPath as document element - what parsing the
+   *         serialized node gives.
+   */
+  private Document getRecordDocument( DocumentBuilder builder, Document xmlDocument, Node node ) throws Exception {
+    // importNode drops the default attributes of a DTD, and only an element can be a document element
+    if (xmlDocument.getDoctype( ) != null || node.getNodeType( ) != Node.ELEMENT_NODE) {
+      return builder.parse( new ByteArrayInputStream( getText( node ).getBytes() ) );
+    }
+    Document subDoc = builder.newDocument( );
+    subDoc.appendChild( subDoc.importNode( node, true ) );
+    return subDoc;
+  }
+    
   private String getText( Node n ) throws Exception {
     StringWriter writer = new StringWriter( );
-    Transformer transformer = TransformerFactory.newInstance().newTransformer( );
+    Transformer transformer = serializers.get( );
+    if (transformer == null) {
+      transformer = TransformerFactory.newInstance().newTransformer( );
+      serializers.set( transformer );
+    }
     DOMSource source = new DOMSource( n );
     StreamResult result = new StreamResult( writer );
     transformer.transform( source, result );
     return writer.toString( );
   }
     
-  private List<String> getValues( Document doc, XPathExpression valExpr ) {
+  private List<String> getValues( Document doc, XPathMappingPlan.Rule compiledRule ) {
     ArrayList<String> values = new ArrayList<String>( );
     try {
-      NodeList textNodes = (NodeList)valExpr.evaluate( doc, XPathConstants.NODESET );
+      NodeList textNodes = compiledRule.getValueNodes( doc );
       for (int n = 0; n < textNodes.getLength(); ++n) {
         values.add( textNodes.item( n ).getTextContent() );
       }
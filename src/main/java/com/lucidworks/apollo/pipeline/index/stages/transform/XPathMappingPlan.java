@@ -0,0 +1,103 @@
+package com.lucidworks.apollo.pipeline.index.stages.transform;
+
+import com.lucidworks.apollo.pipeline.index.config.transform.XMLTransformConfig;
+import com.lucidworks.apollo.pipeline.index.config.transform.XMLTransformConfig.XPathMappingRule;
+
+import java.util.List;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+/**
+ * The XPath expressions of an XMLTransformConfig - the root XPath and the value and field name paths of each
+ * XPathMappingRule - compiled once. XPathExpressions are not thread safe: a plan must only be used by the thread
+ * that compiled it (XMLTransformStage keeps one per thread).
+ *
+ * If the config streams records, is not namespace aware and the root XPath is a simple element path, the plan also
+ * has that path for XMLRecordStream.
+ */
+final class XPathMappingPlan {
+
+  /**
+   * Compiled XPathMappingRule. Simple paths (see SimpleXPath) are evaluated by walking the DOM.
+   */
+  static final class Rule {
+    final XPathMappingRule rule;
+    final XPathExpression value;
+    final XPathExpression field;  // null if the field is a name
+    private final SimpleXPath simpleValue;
+    private final SimpleXPath simpleField;
+
+    private Rule( XPathMappingRule rule, XPathExpression value, XPathExpression field ) {
+      this.rule = rule;
+      this.value = value;
+      this.field = field;
+      this.simpleValue = SimpleXPath.compile( rule.getXpath( ) );
+      this.simpleField = (field != null) ? SimpleXPath.compile( rule.getField( ) ) : null;
+    }
+
+    NodeList getValueNodes( Document doc ) throws XPathExpressionException {
+      return (simpleValue != null) ? simpleValue.evaluate( doc ) : (NodeList)value.evaluate( doc, XPathConstants.NODESET );
+    }
+
+    NodeList getFieldNodes( Document doc ) throws XPathExpressionException {
+      return (simpleField != null) ? simpleField.evaluate( doc ) : (NodeList)field.evaluate( doc, XPathConstants.NODESET );
+    }
+  }
+
+  private final XMLTransformConfig config;
+  private final XPathExpression root;
+  private final ElementPath recordPath;
+  private final Rule[] rules;
+
+  private XPathMappingPlan( XMLTransformConfig config, XPathExpression root, ElementPath recordPath, Rule[] rules ) {
+    this.config = config;
+    this.root = root;
+    this.recordPath = recordPath;
+    this.rules = rules;
+  }
+
+  static XPathMappingPlan compile( XMLTransformConfig config ) throws XPathExpressionException {
+    XPath xPath = XPathFactory.newInstance( ).newXPath( );
+    XPathExpression root = xPath.compile( config.getRootXPath( ) );
+    // evaluated against the document node, a relative root XPath is absolute
+    boolean streamable = config.shouldStreamRecords( ) && !config.isNamespaceAware( );
+    ElementPath recordPath = (streamable && ElementPath.isSimple( config.getRootXPath( ) ))
+                           ? ElementPath.compile( config.getRootXPath( ), false ) : null;
+
+    List<XPathMappingRule> mappings = config.getMappings( );
+    Rule[] rules = new Rule[ mappings.size( ) ];
+    for (int i = 0; i < rules.length; i++) {
+      XPathMappingRule rule = mappings.get( i );
+      String fieldname = rule.getField( );
+      XPathExpression field = (fieldname != null && fieldname.startsWith( "/" )) ? xPath.compile( fieldname ) : null;
+      rules[i] = new Rule( rule, xPath.compile( rule.getXpath( ) ), field );
+    }
+    return new XPathMappingPlan( config, root, recordPath, rules );
+  }
+
+  boolean isCompiledFrom( XMLTransformConfig config ) {
+    return this.config == config;
+  }
+
+  XPathExpression getRoot( ) {
+    return root;
+  }
+
+  /**
+   * @return the root XPath as element path, null if records are not streamed.
+   */
+  ElementPath getRecordPath( ) {
+    return recordPath;
+  }
+
+  Rule[] getRules( ) {
+    return rules;
+  }
+}
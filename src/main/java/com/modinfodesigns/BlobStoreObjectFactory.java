@@ -31,11 +31,18 @@ public class BlobStoreObjectFactory extends ModInfoObjectFactory {
     try {
       // get the InputStream from resourceLoader
       InputStream configStream = resourceLoader.get( configData );
-      Document doc = DOMMethods.getDocument( configStream );
-      super.initialize( doc.getDocumentElement( ) );
+      initialize( configStream );
     }
     catch ( IOException ioe ) {
           
     }
   }
+    
+  /**
+   * Initializes from blob content that has already been read.
+   */
+  public void initialize( InputStream configStream ) {
+    Document doc = DOMMethods.getDocument( configStream );
+    super.initialize( doc.getDocumentElement( ) );
+  }
 }
\ No newline at end of file
@@ -0,0 +1,365 @@
+package com.lucidworks.apollo.modinfodesigns;
+
+import com.lucidworks.apollo.component.ResourceLoader;
+
+import com.modinfodesigns.app.IObjectFactory;
+import com.modinfodesigns.app.ModInfoObjectFactory;
+import com.modinfodesigns.property.IProperty;
+import com.modinfodesigns.property.IPropertyHolder;
+import com.modinfodesigns.property.transform.IPropertyHolderTransform;
+import com.modinfodesigns.property.transform.IPropertyTransformListener;
+import com.modinfodesigns.property.transform.PropertyTransformException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.lang.ref.WeakReference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the DataTransforms defined in a transform config resource as an immutable, compiled list of
+ * IPropertyHolderTransforms - each one a NamedTransform that carries its name from the config. Resources that start with '/' are read from the file system (ModInfoObjectFactory),
+ * other names are read from the blob store (BlobStoreObjectFactory).
+ *
+ * Transforms are registered per stage config: each (config id, resource) pair gets its own object factory, which is
+ * not added to the global ApplicationManager, so a config only ever runs the transforms of its own resource.
+ * Handles are created lazily - concurrent first requests for the same key wait for a single load, requests for
+ * other keys are not blocked.
+ *
+ * Worker threads read the current list with a single volatile read. A background task re-reads each resource
+ * periodically and, if its checksum has changed, builds a new list and swaps it in - so transforms can be edited
+ * without restarting and without any per-document checks.
+ *
+ * Refresh tasks are cancelled when their handle is released - release( configId ) when a config is dropped, close( )
+ * when the cache is. A task only holds its handle weakly and cancels itself once the handle has been collected, so
+ * a cache that is dropped without close( ) stops refreshing too.
+ */
+public class DataTransformCache {
+  private transient static final Logger LOG = LoggerFactory.getLogger( DataTransformCache.class );
+
+  public static final String DATA_TRANSFORM = "DataTransform";
+
+  private static final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor( new ThreadFactory( ) {
+    @Override
+    public Thread newThread( Runnable r ) {
+      Thread t = new Thread( r, "data-transform-refresh" );
+      t.setDaemon( true );
+      return t;
+    }
+  } );
+
+  /**
+   * The transforms of one resource. The list is replaced atomically when the resource changes.
+   */
+  public static final class TransformHandle {
+    private final DataTransformCache cache;
+    private final String resource;
+    private volatile List<IPropertyHolderTransform> transforms;
+    private volatile long checksum;
+    private ScheduledFuture<?> refreshTask;
+
+    private TransformHandle( DataTransformCache cache, String resource ) {
+      this.cache = cache;
+      this.resource = resource;
+    }
+
+    public List<IPropertyHolderTransform> getTransforms( ) {
+      return transforms;
+    }
+
+    public long getChecksum( ) {
+      return checksum;
+    }
+
+    public String getResource( ) {
+      return resource;
+    }
+
+    private void load( byte[] data, long newChecksum ) throws IOException {
+      List<IPropertyHolderTransform> newTransforms = cache.compile( resource, data );
+      // publish the list before the checksum - readers only look at the list
+      this.transforms = newTransforms;
+      this.checksum = newChecksum;
+    }
+
+    // periodic refresh
+    private void refresh( ) {
+      try {
+        byte[] data = cache.read( resource );
+        long newChecksum = checksum( data );
+        if (newChecksum != checksum) {
+          load( data, newChecksum );
+          LOG.info( "Reloaded " + transforms.size( ) + " DataTransforms from changed resource " + resource );
+        }
+      }
+      catch ( Exception e ) {
+        LOG.error( "Could not refresh DataTransforms from " + resource + ": " + e );
+      }
+    }
+  }
+
+  /**
+   * The scheduled refresh of a handle - cancels itself once the handle has been collected.
+   */
+  private static final class RefreshTask implements Runnable {
+    private final WeakReference<TransformHandle> handle;
+    private volatile ScheduledFuture<?> future;
+
+    RefreshTask( TransformHandle handle ) {
+      this.handle = new WeakReference<TransformHandle>( handle );
+    }
+
+    @Override
+    public void run( ) {
+      TransformHandle current = handle.get( );
+      if (current != null) {
+        current.refresh( );
+      }
+      else if (future != null) {
+        future.cancel( false );
+      }
+    }
+  }
+
+  /**
+   * A DataTransform with the name it was defined with in the transform config.
+   */
+  public static final class NamedTransform implements IPropertyHolderTransform {
+    private final String name;
+    private final IPropertyHolderTransform transform;
+
+    NamedTransform( String name, IPropertyHolderTransform transform ) {
+      this.name = name;
+      this.transform = transform;
+    }
+
+    public String getName( ) {
+      return name;
+    }
+
+    public IPropertyHolderTransform getTransform( ) {
+      return transform;
+    }
+
+    @Override
+    public IPropertyHolder transformPropertyHolder( IPropertyHolder input ) throws PropertyTransformException {
+      return transform.transformPropertyHolder( input );
+    }
+
+    @Override
+    public IProperty transform( IProperty input ) throws PropertyTransformException {
+      return transform.transform( input );
+    }
+
+    @Override
+    public void startTransform( IProperty input, IPropertyTransformListener listener ) throws PropertyTransformException {
+      transform.startTransform( input, listener );
+    }
+  }
+
+  /**
+   * Registry key - the id of the owning config, the transform resource and its refresh interval.
+   */
+  private static final class HandleKey {
+    final String configId;
+    final String resource;
+    final int refreshSeconds;
+
+    HandleKey( String configId, String resource, int refreshSeconds ) {
+      this.configId = configId;
+      this.resource = resource;
+      this.refreshSeconds = refreshSeconds;
+    }
+
+    boolean isFor( String id ) {
+      return (configId == null) ? id == null : configId.equals( id );
+    }
+
+    @Override
+    public boolean equals( Object o ) {
+      if (!(o instanceof HandleKey)) return false;
+      HandleKey other = (HandleKey)o;
+      return resource.equals( other.resource ) && refreshSeconds == other.refreshSeconds && isFor( other.configId );
+    }
+
+    @Override
+    public int hashCode( ) {
+      return 31 * (31 * resource.hashCode( ) + refreshSeconds) + ((configId != null) ? configId.hashCode( ) : 0);
+    }
+  }
+
+  private final ResourceLoader resourceLoader;
+  private final ConcurrentHashMap<HandleKey, FutureTask<TransformHandle>> handles = new ConcurrentHashMap<HandleKey, FutureTask<TransformHandle>>( );
+
+  public DataTransformCache( ResourceLoader resourceLoader ) {
+    this.resourceLoader = resourceLoader;
+  }
+
+  /**
+   * Returns the handle for the transform resource of a config, loading it on first use. Handles that the config
+   * registered for other resources or refresh intervals are released.
+   *
+   * @param refreshSeconds how often the resource is checked for changes - 0 to never check
+   */
+  public TransformHandle getHandle( String configId, final String resource, final int refreshSeconds ) throws IOException {
+    HandleKey key = new HandleKey( configId, resource, refreshSeconds );
+    FutureTask<TransformHandle> task = handles.get( key );
+    if (task == null) {
+      FutureTask<TransformHandle> newTask = new FutureTask<TransformHandle>( new Callable<TransformHandle>( ) {
+        @Override
+        public TransformHandle call( ) throws Exception {
+          return load( resource, refreshSeconds );
+        }
+      } );
+      task = handles.putIfAbsent( key, newTask );
+      if (task == null) {
+        task = newTask;
+        task.run( );
+        release( key );
+      }
+    }
+
+    try {
+      return task.get( );
+    }
+    catch ( InterruptedException ie ) {
+      Thread.currentThread( ).interrupt( );
+      throw new IOException( "Interrupted loading DataTransforms from " + resource );
+    }
+    catch ( ExecutionException ee ) {
+      // forget the failed load so that the next request retries it
+      handles.remove( key, task );
+      Throwable cause = ee.getCause( );
+      if (cause instanceof IOException) throw (IOException)cause;
+      throw new IOException( "Could not load DataTransforms from " + resource, cause );
+    }
+  }
+
+  private TransformHandle load( String resource, int refreshSeconds ) throws IOException {
+    TransformHandle handle = new TransformHandle( this, resource );
+    byte[] data = read( resource );
+    handle.load( data, checksum( data ) );
+    LOG.info( "Loaded " + handle.getTransforms( ).size( ) + " DataTransforms from " + resource );
+
+    if (refreshSeconds > 0) {
+      RefreshTask refreshTask = new RefreshTask( handle );
+      refreshTask.future = refresher.scheduleWithFixedDelay( refreshTask, refreshSeconds, refreshSeconds, TimeUnit.SECONDS );
+      handle.refreshTask = refreshTask.future;
+    }
+    return handle;
+  }
+
+  /**
+   * Releases the handles of a config and cancels their refresh tasks - the config is no longer used.
+   */
+  public void release( String configId ) {
+    for (Map.Entry<HandleKey, FutureTask<TransformHandle>> entry : handles.entrySet( ) ) {
+      if (entry.getKey( ).isFor( configId )) {
+        release( entry.getKey( ), entry.getValue( ) );
+      }
+    }
+  }
+
+  /**
+   * Releases all handles and cancels their refresh tasks.
+   */
+  public void close( ) {
+    for (Map.Entry<HandleKey, FutureTask<TransformHandle>> entry : handles.entrySet( ) ) {
+      release( entry.getKey( ), entry.getValue( ) );
+    }
+  }
+
+  // drops the other handles of the same config - the config was changed to use a new resource or refresh interval
+  private void release( HandleKey current ) {
+    for (Map.Entry<HandleKey, FutureTask<TransformHandle>> entry : handles.entrySet( ) ) {
+      HandleKey key = entry.getKey( );
+      if (!key.equals( current ) && key.isFor( current.configId )) {
+        release( key, entry.getValue( ) );
+      }
+    }
+  }
+
+  private void release( HandleKey key, FutureTask<TransformHandle> task ) {
+    if (handles.remove( key, task )) {
+      try {
+        ScheduledFuture<?> refreshTask = task.get( ).refreshTask;
+        if (refreshTask != null) refreshTask.cancel( false );
+      }
+      catch ( Exception e ) {
+        // failed loads have no refresh task
+      }
+    }
+  }
+
+  private List<IPropertyHolderTransform> compile( String resource, byte[] data ) throws IOException {
+    IObjectFactory objectFac = null;
+    if (resource.startsWith( "/" )) {
+      objectFac = new ModInfoObjectFactory( );
+      objectFac.initialize( new String( data, "UTF-8" ) );
+    }
+    else {
+      BlobStoreObjectFactory blobFac = new BlobStoreObjectFactory( resourceLoader );
+      blobFac.initialize( new ByteArrayInputStream( data ) );
+      objectFac = blobFac;
+    }
+
+    // names and objects are listed in the same (definition) order
+    ArrayList<IPropertyHolderTransform> pTransforms = new ArrayList<IPropertyHolderTransform>( );
+    List<String> names = objectFac.getApplicationObjectNames( DATA_TRANSFORM );
+    if (names != null) {
+      for (String name : names ) {
+        Object appObject = objectFac.getApplicationObject( name, DATA_TRANSFORM );
+        if (appObject instanceof IPropertyHolderTransform ) {
+          pTransforms.add( new NamedTransform( name, (IPropertyHolderTransform)appObject ) );
+        }
+      }
+    }
+    return Collections.unmodifiableList( pTransforms );
+  }
+
+  private byte[] read( String resource ) throws IOException {
+    InputStream is = (resource.startsWith( "/" )) ? new FileInputStream( resource ) : resourceLoader.get( resource );
+    if (is == null) {
+      throw new IOException( "Transform resource not found: " + resource );
+    }
+
+    try {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream( );
+      byte[] buffer = new byte[ 8192 ];
+      int n;
+      while ((n = is.read( buffer )) > 0) {
+        bos.write( buffer, 0, n );
+      }
+      return bos.toByteArray( );
+    }
+    finally {
+      is.close( );
+    }
+  }
+
+  private static long checksum( byte[] data ) {
+    CRC32 crc = new CRC32( );
+    crc.update( data, 0, data.length );
+    return crc.getValue( );
+  }
+}
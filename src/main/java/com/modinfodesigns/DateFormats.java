@@ -0,0 +1,244 @@
+package com.lucidworks.apollo.modinfodesigns;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneRules;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Date parsing and formatting with SimpleDateFormat patterns, giving the same results as a new SimpleDateFormat for
+ * each value (what DateProperty does) without creating one.
+ *
+ * The fixed width layouts yyyy-MM-dd'T'HH:mm:ss'Z' (the Solr format), yyyy-MM-dd'T'HH:mm:ss, yyyy-MM-dd HH:mm:ss,
+ * yyyy/MM/dd HH:mm:ss, yyyy-MM-dd and yyyy/MM/dd are parsed and formatted by hand. Values these do not handle the
+ * same way SimpleDateFormat does - other widths, out of range fields (which lenient parsing rolls over), years before
+ * 1901, local times in a daylight saving gap or overlap - and all other patterns go to a SimpleDateFormat that is
+ * created once per thread and pattern.
+ *
+ * Each thread also remembers its last parsed and formatted values: timestamps repeat a lot within one feed.
+ *
+ * Times are local to the JVM default time zone as of the thread's first use of this class.
+ */
+public final class DateFormats {
+
+  private static final int CACHE_SIZE = 256;  // per thread, power of 2
+  private static final int MAX_PATTERNS = 32; // SimpleDateFormats per thread
+
+  private static final ThreadLocal<DateFormats> FORMATS = new ThreadLocal<DateFormats>( ) {
+    @Override
+    protected DateFormats initialValue( ) {
+      return new DateFormats( );
+    }
+  };
+
+  /**
+   * A fixed width layout: yyyy?MM?dd, optionally followed by ?HH:mm:ss and a literal suffix.
+   */
+  private static final class Layout {
+    final char dateSeparator;
+    final char timeSeparator;  // 0 for a date only
+    final String suffix;
+    final int length;
+
+    Layout( char dateSeparator, char timeSeparator, String suffix ) {
+      this.dateSeparator = dateSeparator;
+      this.timeSeparator = timeSeparator;
+      this.suffix = suffix;
+      this.length = 10 + ((timeSeparator != 0) ? 9 : 0) + suffix.length( );
+    }
+  }
+
+  private static final HashMap<String, Layout> LAYOUTS = new HashMap<String, Layout>( );
+  static {
+    LAYOUTS.put( "yyyy-MM-dd'T'HH:mm:ss'Z'", new Layout( '-', 'T', "Z" ) );
+    LAYOUTS.put( "yyyy-MM-dd'T'HH:mm:ss", new Layout( '-', 'T', "" ) );
+    LAYOUTS.put( "yyyy-MM-dd HH:mm:ss", new Layout( '-', ' ', "" ) );
+    LAYOUTS.put( "yyyy/MM/dd HH:mm:ss", new Layout( '/', ' ', "" ) );
+    LAYOUTS.put( "yyyy-MM-dd", new Layout( '-', (char)0, "" ) );
+    LAYOUTS.put( "yyyy/MM/dd", new Layout( '/', (char)0, "" ) );
+  }
+
+  // TimeZone has no local mean time offsets (and SimpleDateFormat the Julian calendar) before 1900
+  private static final int MIN_YEAR = 1901;
+
+  private final TimeZone timeZone = TimeZone.getDefault( );
+  private final ZoneRules rules = timeZone.toZoneId( ).getRules( );
+  private final HashMap<String, SimpleDateFormat> simpleFormats = new HashMap<String, SimpleDateFormat>( );
+
+  private final String[] parsedValues = new String[ CACHE_SIZE ];
+  private final String[] parsedPatterns = new String[ CACHE_SIZE ];
+  private final long[] parsedTimes = new long[ CACHE_SIZE ];
+
+  private final long[] formattedTimes = new long[ CACHE_SIZE ];
+  private final String[] formattedPatterns = new String[ CACHE_SIZE ];
+  private final String[] formattedValues = new String[ CACHE_SIZE ];
+
+  private final char[] chars = new char[ 32 ];
+
+  private DateFormats( ) { }
+
+  /**
+   * @return the date of a value as SimpleDateFormat( pattern ).parse( value, new ParsePosition( 0 ) ) parses it,
+   *         null if it can't be parsed.
+   */
+  public static Date parse( String value, String pattern ) {
+    if (value == null || pattern == null) return null;
+    return FORMATS.get( ).parseDate( value, pattern );
+  }
+
+  /**
+   * @return a date formatted as SimpleDateFormat( pattern ).format( date ) formats it.
+   */
+  public static String format( Date date, String pattern ) {
+    return FORMATS.get( ).formatDate( date.getTime( ), pattern );
+  }
+
+  private Date parseDate( String value, String pattern ) {
+    int slot = (value.hashCode( ) * 31 + pattern.hashCode( )) & (CACHE_SIZE - 1);
+    if (value.equals( parsedValues[slot] ) && pattern.equals( parsedPatterns[slot] )) {
+      return new Date( parsedTimes[slot] );
+    }
+
+    Layout layout = LAYOUTS.get( pattern );
+    long time = (layout != null) ? parseLayout( value, layout ) : Long.MIN_VALUE;
+    if (time == Long.MIN_VALUE) {
+      Date date = getSimpleFormat( pattern ).parse( value, new ParsePosition( 0 ) );
+      if (date == null) return null;
+      time = date.getTime( );
+    }
+
+    parsedValues[slot] = value;
+    parsedPatterns[slot] = pattern;
+    parsedTimes[slot] = time;
+    return new Date( time );
+  }
+
+  private String formatDate( long time, String pattern ) {
+    int slot = (Long.hashCode( time ) * 31 + pattern.hashCode( )) & (CACHE_SIZE - 1);
+    if (formattedTimes[slot] == time && pattern.equals( formattedPatterns[slot] )) {
+      return formattedValues[slot];
+    }
+
+    Layout layout = LAYOUTS.get( pattern );
+    String value = (layout != null) ? formatLayout( time, layout ) : null;
+    if (value == null) {
+      value = getSimpleFormat( pattern ).format( new Date( time ) );
+    }
+
+    formattedTimes[slot] = time;
+    formattedPatterns[slot] = pattern;
+    formattedValues[slot] = value;
+    return value;
+  }
+
+  // milliseconds of a value in a layout, Long.MIN_VALUE if SimpleDateFormat has to parse it
+  private long parseLayout( String value, Layout layout ) {
+    if (value.length( ) != layout.length || !value.endsWith( layout.suffix )) return Long.MIN_VALUE;
+
+    int year = digits( value, 0, 4 );
+    int month = digits( value, 5, 2 );
+    int day = digits( value, 8, 2 );
+    if (year < MIN_YEAR || month < 1 || month > 12 || day < 1 || day > daysInMonth( year, month )
+        || value.charAt( 4 ) != layout.dateSeparator || value.charAt( 7 ) != layout.dateSeparator) {
+      return Long.MIN_VALUE;
+    }
+
+    int hour = 0;
+    int minute = 0;
+    int second = 0;
+    if (layout.timeSeparator != 0) {
+      hour = digits( value, 11, 2 );
+      minute = digits( value, 14, 2 );
+      second = digits( value, 17, 2 );
+      if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59
+          || value.charAt( 10 ) != layout.timeSeparator || value.charAt( 13 ) != ':' || value.charAt( 16 ) != ':') {
+        return Long.MIN_VALUE;
+      }
+    }
+
+    LocalDateTime local = LocalDateTime.of( year, month, day, hour, minute, second );
+    List<ZoneOffset> offsets = rules.getValidOffsets( local );
+    if (offsets.size( ) != 1) return Long.MIN_VALUE;
+    return local.toEpochSecond( offsets.get( 0 ) ) * 1000L;
+  }
+
+  // a time in a layout, null if SimpleDateFormat has to format it
+  private String formatLayout( long time, Layout layout ) {
+    long seconds = Math.floorDiv( time, 1000L );
+    ZoneOffset offset = rules.getOffset( Instant.ofEpochSecond( seconds ) );
+    LocalDateTime local = LocalDateTime.ofEpochSecond( seconds, 0, offset );
+    int year = local.getYear( );
+    if (year < MIN_YEAR || year > 9999) return null;
+
+    putDigits( year, 0, 4 );
+    chars[4] = layout.dateSeparator;
+    putDigits( local.getMonthValue( ), 5, 2 );
+    chars[7] = layout.dateSeparator;
+    putDigits( local.getDayOfMonth( ), 8, 2 );
+    int length = 10;
+    if (layout.timeSeparator != 0) {
+      chars[10] = layout.timeSeparator;
+      putDigits( local.getHour( ), 11, 2 );
+      chars[13] = ':';
+      putDigits( local.getMinute( ), 14, 2 );
+      chars[16] = ':';
+      putDigits( local.getSecond( ), 17, 2 );
+      length = 19;
+    }
+    layout.suffix.getChars( 0, layout.suffix.length( ), chars, length );
+    return new String( chars, 0, length + layout.suffix.length( ) );
+  }
+
+  private SimpleDateFormat getSimpleFormat( String pattern ) {
+    SimpleDateFormat format = simpleFormats.get( pattern );
+    if (format == null) {
+      format = new SimpleDateFormat( pattern );
+      format.setTimeZone( timeZone );
+      if (simpleFormats.size( ) >= MAX_PATTERNS) {
+        simpleFormats.clear( );
+      }
+      simpleFormats.put( pattern, format );
+    }
+    return format;
+  }
+
+  // the value of n ASCII digits, -1 if there is anything else
+  private static int digits( String value, int start, int n ) {
+    int result = 0;
+    for (int i = start; i < start + n; i++) {
+      char ch = value.charAt( i );
+      if (ch < '0' || ch > '9') return -1;
+      result = result * 10 + (ch - '0');
+    }
+    return result;
+  }
+
+  private void putDigits( int value, int start, int n ) {
+    for (int i = start + n - 1; i >= start; i--) {
+      chars[i] = (char)('0' + value % 10);
+      value /= 10;
+    }
+  }
+
+  private static int daysInMonth( int year, int month ) {
+    switch (month) {
+      case 2:
+        return ((year % 4 == 0 && year % 100 != 0) || year % 400 == 0) ? 29 : 28;
+      case 4:
+      case 6:
+      case 9:
+      case 11:
+        return 30;
+      default:
+        return 31;
+    }
+  }
+}